@@ -0,0 +1,53 @@
+/*
+The static helpers the routes are built on: query parsing, reading a docroot
+file and listing the docroot. Run from the project directory so www/ is
+found.
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HelpersBenchmark {
+
+  /** query strings for splitQuery only, so the file benchmarks run once */
+  @State(Scope.Benchmark)
+  public static class Query {
+    @Param({
+      "num1=3&num2=4",
+      "string=Hello%20World%2C%20this%20is%20encoded&num=50&Name=Ada+Lovelace&Birthday=10%2F12%2F1815"
+    })
+    public String query;
+  }
+
+  private File file;
+
+  @Setup
+  public void setup() {
+    file = new File("www/root.html");
+  }
+
+  @Benchmark
+  public Map<String, String> splitQuery(Query q) throws UnsupportedEncodingException {
+    return WebServer.splitQuery(q.query);
+  }
+
+  @Benchmark
+  public byte[] readFileInBytes() throws IOException {
+    return WebServer.readFileInBytes(file);
+  }
+
+  @Benchmark
+  public String buildFileList() {
+    return WebServer.buildFileList();
+  }
+}
@@ -0,0 +1,55 @@
+/*
+Whole request pipeline per route: parsing the raw request from an in-memory
+stream, routing and rendering the complete response with createResponse, no
+sockets involved. Run from the project directory so www/ is found.
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutesBenchmark {
+
+  @Param({
+    "/",
+    "/json",
+    "/random",
+    "/multiply?num1=3&num2=4",
+    "/profile?Name=Ada&Birthday=10/12/1815",
+    "/repeat?string=Test&num=50",
+    "/file/www/index.html",
+    "/cachestats",
+    "/nothing/here"
+  })
+  public String target;
+
+  private WebServer web;
+  private byte[] request;
+
+  @Setup
+  public void setup() {
+    web = new WebServer();
+    request = ("GET " + target + " HTTP/1.1\r\n"
+        + "Host: localhost:8888\r\n"
+        + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+        + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+        + "Accept-Language: en-US,en;q=0.5\r\n"
+        + "Accept-Encoding: gzip, deflate\r\n"
+        + "Connection: keep-alive\r\n"
+        + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  @Benchmark
+  public byte[] createResponse() {
+    return web.createResponse(new ByteArrayInputStream(request));
+  }
+}
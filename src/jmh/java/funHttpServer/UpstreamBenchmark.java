@@ -0,0 +1,86 @@
+/*
+The /github path without GitHub: UpstreamClient fetching a repo listing from
+a stub server on localhost (this replaced fetchURL), and pulling the repo
+fields out of the listing.
+*/
+
+package funHttpServer;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpstreamBenchmark {
+
+  /** repos in the listing */
+  @Param({"10", "100"})
+  public int repos;
+
+  private HttpServer stub;
+  private UpstreamClient client;
+  private String listing;
+
+  @Setup
+  public void setup() throws IOException {
+    listing = listing(repos);
+    byte[] body = listing.getBytes(StandardCharsets.UTF_8);
+
+    stub = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    stub.createContext("/", exchange -> {
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    stub.setExecutor(Executors.newFixedThreadPool(4));
+    stub.start();
+    client = new UpstreamClient("http://127.0.0.1:" + stub.getAddress().getPort(), 1000, 5000);
+  }
+
+  @TearDown
+  public void tearDown() {
+    stub.stop(0);
+  }
+
+  /**
+   * A listing shaped like GitHub's answer for users/NAME/repos
+   */
+  static String listing(int repos) {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < repos; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append("{\"id\":").append(100000 + i)
+          .append(",\"node_id\":\"MDEwOlJlcG9zaXRvcnkxMjM0NTY=\",\"name\":\"repo").append(i)
+          .append("\",\"full_name\":\"amehlhase316/repo").append(i)
+          .append("\",\"private\":false,\"owner\":{\"login\":\"amehlhase316\",\"id\":42,")
+          .append("\"avatar_url\":\"https://avatars.githubusercontent.com/u/42?v=4\",\"type\":\"User\"},")
+          .append("\"description\":\"Some \\\"quoted\\\" text \\u00e9\",\"fork\":false,")
+          .append("\"topics\":[\"java\",\"http\"],\"stargazers_count\":").append(i)
+          .append(",\"license\":null}");
+    }
+    return json.append(']').toString();
+  }
+
+  @Benchmark
+  public String fetch() {
+    return client.get("users/amehlhase316/repos").join();
+  }
+
+  @Benchmark
+  public String summarizeRepos() throws IOException {
+    return WebServer.summarizeRepos(new StringReader(listing));
+  }
+}
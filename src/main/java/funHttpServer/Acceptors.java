@@ -0,0 +1,340 @@
+/*
+The threads that accept connections, for both engines. With
+funHttpServer.acceptors=N (default 1) N listening channels are bound to the
+same port with SO_REUSEPORT, each with its own thread blocked in accept().
+The kernel spreads new connections over the N accept queues by hashing the
+client address, so a connection storm is taken off the queues by N threads
+on as many cores, and while one acceptor is busy only its queue fills up.
+
+Where SO_REUSEPORT isn't supported (Windows) the N threads share a single
+channel, which still helps when the work an acceptor does per connection is
+what holds it up.
+
+For /metrics every acceptor counts its connections, and on Linux the accept
+queues of the port (how many connections wait in each) are read from
+/proc/net/tcp and tcp6, together with their limit (the backlog, capped by
+net.core.somaxconn) and the host's ListenOverflows and ListenDrops from
+/proc/net/netstat. Overflows going up while the acceptors are busy and the
+queues full mean N (or the backlog) is too small. The queues are read at
+most once a second however often /metrics is scraped, and only sockets this
+process has open (by inode, from /proc/self/fd) are counted, so another
+server sharing the port with SO_REUSEPORT doesn't show up as ours.
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+final class Acceptors implements Closeable {
+  /** acceptor threads (and listening channels where SO_REUSEPORT is supported) */
+  static final int COUNT = Math.max(1, Integer.getInteger("funHttpServer.acceptors", 1));
+
+  /**
+   * Takes over an accepted connection, on the acceptor thread
+   */
+  interface Handler {
+    /**
+     * @param ch the connection, blocking, socket options already applied
+     * @param acceptedAt System.nanoTime() when accept() returned
+     */
+    void accepted(SocketChannel ch, long acceptedAt) throws IOException;
+  }
+
+  // the server's acceptors, for the metrics
+  private static volatile Acceptors active;
+
+  private final List<ServerSocketChannel> channels = new ArrayList<>();
+  private final LongAdder[] accepted;
+  private final int port;
+  private volatile boolean closed = false;
+
+  // scrapes within this many ms share one read of /proc/net
+  private static final long QUEUES_MAX_AGE_MS = 1000;
+  private List<Long> queues;
+  private long queuesReadAt;
+  // inodes of our sockets, null until the first read
+  private Set<String> inodes;
+
+  /**
+   * Binds the listening channels
+   * @param port to listen on
+   * @param count number of acceptor threads
+   * @throws IOException if binding fails
+   */
+  Acceptors(int port, int count) throws IOException {
+    accepted = new LongAdder[count];
+    for (int i = 0; i < count; i++) {
+      accepted[i] = new LongAdder();
+    }
+    try {
+      ServerSocketChannel first = ServerSocketChannel.open();
+      channels.add(first);
+      boolean reusePort = count > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+      if (reusePort) {
+        // has to be set on every channel before it is bound, the first one included
+        first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      } else if (count > 1) {
+        Log.warn("SO_REUSEPORT not supported, " + count + " acceptors share one listening channel");
+      }
+      WebServer.listen(first, port);
+      // port 0 picks a free one, the others have to bind the same
+      this.port = ((InetSocketAddress) first.getLocalAddress()).getPort();
+      for (int i = 1; reusePort && i < count; i++) {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        channels.add(server);
+        server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        WebServer.listen(server, this.port);
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+    if (count > 1) {
+      Log.info(count + " acceptors on " + channels.size() + " listening channels");
+    }
+    active = this;
+  }
+
+  /**
+   * Accepts connections until a channel fails or is closed. The calling
+   * thread is the first acceptor, the others get a thread each.
+   * @throws IOException when accepting fails, all acceptors stop then
+   */
+  void run(Handler handler) throws IOException {
+    for (int i = 1; i < accepted.length; i++) {
+      int index = i;
+      Thread t = new Thread(() -> {
+        try {
+          accept(index, handler);
+        } catch (IOException e) {
+          if (!closed) {
+            Log.error("Acceptor " + index + " failed", e);
+            // stops the others too, the server goes down as a whole
+            close();
+          }
+        }
+      }, "acceptor-" + i);
+      t.start();
+    }
+    accept(0, handler);
+  }
+
+  private void accept(int index, Handler handler) throws IOException {
+    ServerSocketChannel server = channels.get(Math.min(index, channels.size() - 1));
+    while (true) {
+      SocketChannel ch = server.accept();
+      long acceptedAt = System.nanoTime();
+      try {
+        WebServer.configure(ch);
+      } catch (IOException e) {
+        // reset before we got to it
+        closeQuietly(ch);
+        continue;
+      }
+      accepted[index].increment();
+      Metrics.accepted();
+      handler.accepted(ch, acceptedAt);
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    for (ServerSocketChannel server : channels) {
+      closeQuietly(server);
+    }
+    if (active == this) {
+      active = null;
+    }
+  }
+
+  private static void closeQuietly(Closeable c) {
+    try {
+      c.close();
+    } catch (IOException e) {
+      // closed anyway
+    }
+  }
+
+  /**
+   * @return the acceptors of the running server, null if there is none
+   */
+  static Acceptors active() {
+    return active;
+  }
+
+  /**
+   * @return connections taken by each acceptor
+   */
+  long[] accepted() {
+    long[] counts = new long[accepted.length];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = accepted[i].sum();
+    }
+    return counts;
+  }
+
+  /**
+   * Reads the accept queues of the listening sockets on our port, or
+   * returns the last read if it is recent enough
+   * @return length of each queue, empty where /proc/net isn't there
+   */
+  synchronized List<Long> queues() {
+    long now = System.currentTimeMillis();
+    if (queues == null || now - queuesReadAt >= QUEUES_MAX_AGE_MS) {
+      if (inodes == null) {
+        // the listening channels are bound by now and don't change
+        inodes = socketInodes();
+      }
+      List<Long> read = new ArrayList<>();
+      readQueues(Paths.get("/proc/net/tcp"), read);
+      readQueues(Paths.get("/proc/net/tcp6"), read);
+      queues = read;
+      queuesReadAt = now;
+    }
+    return queues;
+  }
+
+  private void readQueues(Path table, List<Long> found) {
+    // sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid timeout inode
+    int[] bounds = new int[20];
+    try (BufferedReader in = Files.newBufferedReader(table, StandardCharsets.US_ASCII)) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (fields(line, bounds) < 10
+            || bounds[7] - bounds[6] != 2 || !line.startsWith("0A", bounds[6])) {
+          continue;
+        }
+        int colon = line.lastIndexOf(':', bounds[3] - 1);
+        int queue = line.indexOf(':', bounds[8]);
+        if (colon < bounds[2] || queue < 0 || queue >= bounds[9]) {
+          continue;
+        }
+        // an empty set means /proc/self/fd isn't readable, the port has to do
+        if (!inodes.isEmpty() && !inodes.contains(line.substring(bounds[18], bounds[19]))) {
+          continue;
+        }
+        try {
+          if (Integer.parseInt(line, colon + 1, bounds[3], 16) == port) {
+            // for a listening socket rx_queue is the accept queue
+            found.add(Long.parseLong(line, queue + 1, bounds[9], 16));
+          }
+        } catch (NumberFormatException e) {
+          // a format we don't know
+        }
+      }
+    } catch (IOException e) {
+      // no such table here
+    }
+  }
+
+  /**
+   * Finds the whitespace separated fields of a line without splitting it
+   * @param bounds filled with start and end of each field, pairwise
+   * @return number of fields found, at most bounds.length / 2
+   */
+  private static int fields(String line, int[] bounds) {
+    int n = 0;
+    int i = 0;
+    while (n < bounds.length / 2) {
+      while (i < line.length() && line.charAt(i) == ' ') {
+        i++;
+      }
+      if (i == line.length()) {
+        break;
+      }
+      bounds[2 * n] = i;
+      while (i < line.length() && line.charAt(i) != ' ') {
+        i++;
+      }
+      bounds[2 * n + 1] = i;
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * @return inodes of the sockets this process has open, empty if unknown
+   */
+  private static Set<String> socketInodes() {
+    Set<String> inodes = new HashSet<>();
+    try (DirectoryStream<Path> fds = Files.newDirectoryStream(Paths.get("/proc/self/fd"))) {
+      for (Path fd : fds) {
+        try {
+          // socket:[12345]
+          String target = Files.readSymbolicLink(fd).toString();
+          if (target.startsWith("socket:[") && target.endsWith("]")) {
+            inodes.add(target.substring(8, target.length() - 1));
+          }
+        } catch (IOException e) {
+          // closed meanwhile
+        }
+      }
+    } catch (IOException e) {
+      // not Linux
+    }
+    return inodes;
+  }
+
+  /**
+   * @return how many connections each accept queue holds, -1 if unknown
+   */
+  static long queueLimit() {
+    // what Java asks for, the kernel caps it at somaxconn
+    long backlog = WebServer.BACKLOG < 1 ? 50 : WebServer.BACKLOG;
+    List<String> max = lines(Paths.get("/proc/sys/net/core/somaxconn"));
+    try {
+      return max.isEmpty() ? -1 : Math.min(backlog, Long.parseLong(max.get(0).trim()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Reads the host wide counters of connections lost at full accept queues
+   * @return ListenOverflows and ListenDrops, null where /proc/net isn't there
+   */
+  static long[] listenOverflows() {
+    List<String> lines = lines(Paths.get("/proc/net/netstat"));
+    // pairs of lines, names then values, per protocol
+    for (int i = 0; i + 1 < lines.size(); i += 2) {
+      if (!lines.get(i).startsWith("TcpExt:")) {
+        continue;
+      }
+      String[] names = lines.get(i).split("\\s+");
+      String[] values = lines.get(i + 1).split("\\s+");
+      long[] counts = new long[] {-1, -1};
+      for (int j = 1; j < names.length && j < values.length; j++) {
+        if (names[j].equals("ListenOverflows")) {
+          counts[0] = Long.parseLong(values[j]);
+        } else if (names[j].equals("ListenDrops")) {
+          counts[1] = Long.parseLong(values[j]);
+        }
+      }
+      return counts[0] < 0 || counts[1] < 0 ? null : counts;
+    }
+    return null;
+  }
+
+  private static List<String> lines(Path file) {
+    try {
+      return Files.readAllLines(file, StandardCharsets.US_ASCII);
+    } catch (IOException e) {
+      return new ArrayList<>();
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/*
+gzip and deflate content encoding. Picks an encoding from the client's
+Accept-Encoding (gzip preferred, q=0 honoured), decides whether a response is
+worth compressing (text-like content type, at least a minimum size) and hands
+out Deflaters from a pool, so a response doesn't allocate the deflater's
+native state and its 64 KB or so of window every time.
+
+"deflate" is the zlib format (RFC 1950) as HTTP defines it, "gzip" is raw
+deflate data between a 10 byte header and a CRC32 / length trailer.
+
+Configured with system properties or the config file, changes apply to the
+next response (see Config):
+funHttpServer.compression          false turns compression off (default true)
+funHttpServer.compressionLevel     1 (fastest) to 9 (smallest), default 6
+funHttpServer.compressMinBytes     smaller bodies are sent as they are (default 1024)
+funHttpServer.compressTypes        comma separated content types or prefixes ending in "/"
+                                   (default text/,application/json,application/javascript,application/xml,image/svg+xml)
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+final class Compression {
+  static final String GZIP = "gzip";
+  static final String DEFLATE = "deflate";
+
+  static final Config.Setting<Boolean> ENABLED = Config.booleanSetting("compression", true);
+  static final Config.Setting<Integer> LEVEL = Config.intSetting("compressionLevel", 6);
+  static final Config.Setting<Integer> MIN_BYTES = Config.intSetting("compressMinBytes", 1024);
+  private static final Config.Setting<List<String>> TYPES = Config.setting("compressTypes",
+      types("text/,application/json,application/javascript,application/xml,image/svg+xml"), Compression::types);
+
+  /** fixed gzip header: magic, deflate, no flags, no mtime, no extra flags, unknown OS */
+  static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+  static final int GZIP_TRAILER = 8;
+
+  /** deflaters kept for reuse, per format */
+  private static final int MAX_POOLED = 64;
+
+  private static final ConcurrentLinkedQueue<Deflater> _raw = new ConcurrentLinkedQueue<>();
+  private static final ConcurrentLinkedQueue<Deflater> _zlib = new ConcurrentLinkedQueue<>();
+  // one count per pool, so neither format can take up the other's slots
+  private static final AtomicInteger _rawPooled = new AtomicInteger();
+  private static final AtomicInteger _zlibPooled = new AtomicInteger();
+
+  private static final LongAdder bytesIn = new LongAdder();
+  private static final LongAdder bytesOut = new LongAdder();
+
+  private Compression() {
+  }
+
+  /**
+   * Picks the encoding for a response
+   * @param acceptEncoding value of the Accept-Encoding header or null
+   * @return GZIP, DEFLATE or null for no encoding
+   */
+  static String negotiate(CharSequence acceptEncoding) {
+    if (!ENABLED.get() || acceptEncoding == null) {
+      return null;
+    }
+    double gzip = -1;
+    double deflate = -1;
+    double any = -1;
+    for (String coding : acceptEncoding.toString().split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim().toLowerCase();
+      double q = 1;
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=") || param.startsWith("Q=")) {
+          try {
+            q = Double.parseDouble(param.substring(2));
+          } catch (NumberFormatException e) {
+            q = 0;
+          }
+        }
+      }
+      if (name.equals("gzip") || name.equals("x-gzip")) {
+        gzip = q;
+      } else if (name.equals("deflate")) {
+        deflate = q;
+      } else if (name.equals("*")) {
+        any = q;
+      }
+    }
+    // codings not listed get the weight of "*"
+    if (gzip < 0) {
+      gzip = any;
+    }
+    if (deflate < 0) {
+      deflate = any;
+    }
+    if (gzip > 0 && gzip >= deflate) {
+      return GZIP;
+    }
+    return deflate > 0 ? DEFLATE : null;
+  }
+
+  /**
+   * @param contentType value of the Content-Type header
+   * @return true if this kind of content gets smaller when compressed
+   */
+  static boolean compressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    int semicolon = contentType.indexOf(';');
+    String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase();
+    for (String accepted : TYPES.get()) {
+      if (accepted.endsWith("/") ? type.startsWith(accepted) : type.equals(accepted)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static List<String> types(String list) {
+    List<String> types = new ArrayList<>();
+    for (String type : list.split(",")) {
+      if (!type.trim().isEmpty()) {
+        types.add(type.trim().toLowerCase());
+      }
+    }
+    return types;
+  }
+
+  /**
+   * @param encoding GZIP or DEFLATE
+   * @return a reset deflater for that format, give it back with release
+   */
+  static Deflater acquire(String encoding) {
+    boolean raw = GZIP.equals(encoding);
+    int level = Math.max(1, Math.min(9, LEVEL.get()));
+    Deflater deflater = (raw ? _raw : _zlib).poll();
+    if (deflater == null) {
+      return new Deflater(level, raw);
+    }
+    (raw ? _rawPooled : _zlibPooled).decrementAndGet();
+    // pooled before the level was changed maybe, costs nothing otherwise
+    deflater.setLevel(level);
+    return deflater;
+  }
+
+  static void release(String encoding, Deflater deflater) {
+    deflater.reset();
+    boolean raw = GZIP.equals(encoding);
+    AtomicInteger pooled = raw ? _rawPooled : _zlibPooled;
+    if (pooled.incrementAndGet() <= MAX_POOLED) {
+      (raw ? _raw : _zlib).add(deflater);
+    } else {
+      pooled.decrementAndGet();
+      // frees the native memory now instead of whenever the GC gets to it
+      deflater.end();
+    }
+  }
+
+  /**
+   * Writes the gzip trailer
+   * @return position after it
+   */
+  static int gzipTrailer(byte[] b, int off, CRC32 crc, long length) {
+    int value = (int) crc.getValue();
+    for (int i = 0; i < 4; i++) {
+      b[off++] = (byte) (value >>> (8 * i));
+    }
+    for (int i = 0; i < 4; i++) {
+      b[off++] = (byte) (length >>> (8 * i));
+    }
+    return off;
+  }
+
+  /**
+   * Compresses a whole body at once, used for the cached static variants
+   * @param data the body
+   * @param encoding GZIP or DEFLATE
+   * @return the encoded body
+   */
+  static byte[] compress(byte[] data, String encoding) {
+    boolean gzip = GZIP.equals(encoding);
+    Deflater deflater = acquire(encoding);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 3 + 64);
+      if (gzip) {
+        out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+      }
+      deflater.setInput(data);
+      deflater.finish();
+      byte[] chunk = new byte[8192];
+      while (!deflater.finished()) {
+        int n = deflater.deflate(chunk);
+        out.write(chunk, 0, n);
+      }
+      if (gzip) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        byte[] trailer = new byte[GZIP_TRAILER];
+        gzipTrailer(trailer, 0, crc, data.length);
+        out.write(trailer, 0, trailer.length);
+      }
+      byte[] encoded = out.toByteArray();
+      counted(data.length, encoded.length);
+      return encoded;
+    } finally {
+      release(encoding, deflater);
+    }
+  }
+
+  /**
+   * Counts bytes that went through a deflater
+   */
+  static void counted(long in, long out) {
+    bytesIn.add(in);
+    bytesOut.add(out);
+  }
+
+  /**
+   * @return body bytes handed to a deflater
+   */
+  static long bytesIn() {
+    return bytesIn.sum();
+  }
+
+  /**
+   * @return bytes that came out of it
+   */
+  static long bytesOut() {
+    return bytesOut.sum();
+  }
+}
@@ -0,0 +1,297 @@
+/*
+Server settings from a file, so each host can be tuned without recompiling.
+The file is funHttpServer.properties in the working directory unless
+funHttpServer.config names another one. It holds either Java properties or,
+for a name ending in .json, one flat JSON object:
+
+  port=9000                  {"port": 9000,
+  idleTimeout=2000            "idleTimeout": 2000,
+  tcpNoDelay=false            "tcpNoDelay": false}
+
+Keys are the funHttpServer.* system property names, the prefix may be left
+out. Values from the file become system properties, so every setting is read
+the same way wherever it comes from, and a -D on the command line always wins
+over the file.
+
+Settings that are safe to change on a running server are declared as a
+Setting. A daemon thread watches the file (like TemplateCache watches the
+docroot) and on every change reads it again, updates the properties and
+refreshes the Settings, whose listeners apply the new value (e.g. a smaller
+cache budget evicts right away). Open connections are kept, they pick up a
+new timeout or socket option with their next request or connection. Anything
+else (port, threads, backlog, the engine) is only read at startup, changing
+it is logged as needing a restart.
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+final class Config {
+  static final String PREFIX = "funHttpServer.";
+
+  private static final List<Setting<?>> settings = new CopyOnWriteArrayList<>();
+
+  // guarded by Config.class
+  private static File file;
+  // properties given on the command line, the file never overrides them
+  private static Set<String> fixed;
+  // what the file said last time, so a removed key goes back to its default
+  private static Map<String, String> applied = new HashMap<>();
+  // set once the startup values are in, later changes may need a restart
+  private static boolean started = false;
+
+  private Config() {
+  }
+
+  /**
+   * A value that can change while the server runs. get() is a volatile read
+   * of the parsed value, cheap enough for every request.
+   */
+  static final class Setting<T> {
+    private final String name;
+    private final T fallback;
+    private final Function<String, T> parse;
+    private final List<Consumer<T>> listeners = new CopyOnWriteArrayList<>();
+    private volatile T value;
+
+    private Setting(String name, T fallback, Function<String, T> parse) {
+      this.name = name;
+      this.fallback = fallback;
+      this.parse = parse;
+      this.value = read(fallback);
+    }
+
+    T get() {
+      return value;
+    }
+
+    /**
+     * @param listener called with the new value after every change, on the
+     *        config watcher thread
+     * @return this setting
+     */
+    Setting<T> onChange(Consumer<T> listener) {
+      listeners.add(listener);
+      return this;
+    }
+
+    /**
+     * @param current kept if the property isn't valid
+     */
+    private T read(T current) {
+      String text = System.getProperty(PREFIX + name);
+      if (text == null || text.trim().isEmpty()) {
+        return fallback;
+      }
+      try {
+        return parse.apply(text.trim());
+      } catch (RuntimeException e) {
+        Log.warn("Ignoring " + PREFIX + name + "=" + text + ", keeping " + current);
+        return current;
+      }
+    }
+
+    /**
+     * Reads the property again and tells the listeners if the value changed
+     */
+    private void refresh() {
+      T now = read(value);
+      if (Objects.equals(now, value)) {
+        return;
+      }
+      value = now;
+      Log.info("Config: " + name + " = " + now);
+      for (Consumer<T> listener : listeners) {
+        try {
+          listener.accept(now);
+        } catch (RuntimeException e) {
+          Log.error("Applying " + name + " failed", e);
+        }
+      }
+    }
+  }
+
+  static Setting<Integer> intSetting(String name, int fallback) {
+    return setting(name, fallback, Integer::valueOf);
+  }
+
+  static Setting<Long> longSetting(String name, long fallback) {
+    return setting(name, fallback, Long::valueOf);
+  }
+
+  static Setting<Boolean> booleanSetting(String name, boolean fallback) {
+    return setting(name, fallback, text -> {
+      if (!text.equalsIgnoreCase("true") && !text.equalsIgnoreCase("false")) {
+        throw new IllegalArgumentException("not a boolean");
+      }
+      return Boolean.valueOf(text);
+    });
+  }
+
+  /**
+   * @param parse turns the property into the value, throws if it isn't valid.
+   *        Values must implement equals, it decides what counts as a change
+   */
+  static <T> Setting<T> setting(String name, T fallback, Function<String, T> parse) {
+    Setting<T> setting = new Setting<>(name, fallback, parse);
+    settings.add(setting);
+    return setting;
+  }
+
+  /**
+   * Reads the config file into the system properties and starts watching it.
+   * Runs before anything else reads a setting, so all of them see the file.
+   */
+  static synchronized void load() {
+    if (fixed != null) {
+      return;
+    }
+    fixed = new HashSet<>(System.getProperties().stringPropertyNames());
+    String name = System.getProperty(PREFIX + "config");
+    file = new File(name != null ? name : "funHttpServer.properties").getAbsoluteFile();
+    if (file.isFile()) {
+      reload();
+      Log.info("Config read from " + file);
+    } else if (name != null) {
+      Log.warn("Config file " + file + " not found, waiting for it to appear");
+    }
+    started = true;
+    watch();
+  }
+
+  /**
+   * Reads the file again and applies what changed
+   */
+  static synchronized void reload() {
+    Map<String, String> values;
+    try {
+      values = file.isFile() ? read(file) : new HashMap<>();
+    } catch (IOException e) {
+      // keep running with what was read last
+      Log.warn("Reading " + file + " failed, keeping the current settings: " + e.getMessage());
+      return;
+    }
+    Set<String> changed = new TreeSet<>();
+    for (String key : union(applied.keySet(), values.keySet())) {
+      if (fixed.contains(key)) {
+        continue;
+      }
+      String value = values.get(key);
+      if (Objects.equals(value, applied.get(key))) {
+        continue;
+      }
+      if (value == null) {
+        System.clearProperty(key);
+      } else {
+        System.setProperty(key, value);
+      }
+      changed.add(key);
+    }
+    applied = values;
+    for (Setting<?> setting : settings) {
+      changed.remove(PREFIX + setting.name);
+      setting.refresh();
+    }
+    changed.remove(PREFIX + "config");
+    if (started && !changed.isEmpty()) {
+      Log.warn("Config: " + changed + " only take effect after a restart");
+    }
+  }
+
+  /**
+   * @return the file's settings by full property name
+   * @throws IOException if the file can't be read or isn't valid
+   */
+  static Map<String, String> read(File f) throws IOException {
+    Map<String, String> values = new HashMap<>();
+    try (Reader in = new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8)) {
+      if (f.getName().endsWith(".json")) {
+        JsonTokenizer json = new JsonTokenizer(new BufferedReader(in));
+        if (json.next() != JsonTokenizer.Token.BEGIN_OBJECT) {
+          throw new JsonTokenizer.SyntaxError("expected an object of settings");
+        }
+        JsonTokenizer.Token token;
+        while ((token = json.next()) != JsonTokenizer.Token.END) {
+          String path = json.path().toString();
+          if (token == JsonTokenizer.Token.STRING || token == JsonTokenizer.Token.NUMBER
+              || token == JsonTokenizer.Token.TRUE || token == JsonTokenizer.Token.FALSE) {
+            // only members of the top object, nested values mean nothing here
+            if (path.indexOf('.') < 0 && path.indexOf('[') < 0) {
+              values.put(key(path), json.text());
+            }
+          }
+        }
+      } else {
+        Properties properties = new Properties();
+        properties.load(in);
+        for (String name : properties.stringPropertyNames()) {
+          values.put(key(name), properties.getProperty(name).trim());
+        }
+      }
+    }
+    return values;
+  }
+
+  private static String key(String name) {
+    name = name.trim();
+    return name.startsWith(PREFIX) ? name : PREFIX + name;
+  }
+
+  private static Set<String> union(Set<String> a, Set<String> b) {
+    Set<String> all = new HashSet<>(a);
+    all.addAll(b);
+    return all;
+  }
+
+  private static void watch() {
+    File dir = file.getParentFile();
+    try {
+      WatchService watcher = FileSystems.getDefault().newWatchService();
+      dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+      Thread t = new Thread(() -> watch(watcher), "config-watcher");
+      t.setDaemon(true);
+      t.start();
+    } catch (IOException e) {
+      Log.warn("Cannot watch " + dir + ", config changes need a restart: " + e.getMessage());
+    }
+  }
+
+  private static void watch(WatchService watcher) {
+    Path name = file.toPath().getFileName();
+    while (true) {
+      try {
+        WatchKey key = watcher.take();
+        boolean ours = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+          // OVERFLOW has no context, better read once too often
+          ours |= event.context() == null || name.equals(event.context());
+        }
+        key.reset();
+        if (ours) {
+          // editors often write a file in several steps, let them finish
+          Thread.sleep(100);
+          reload();
+        }
+      } catch (InterruptedException e) {
+        return;
+      } catch (RuntimeException e) {
+        Log.error("Reloading the config failed", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/*
+The one deadline a connection is under at any time, tracked by a shared
+TimerWheel. Which one depends on what the connection is waiting for:
+- idle    for the first byte of the next request (funHttpServer.idleTimeout)
+- header  for the rest of a request header once it has started, so sending
+          it one byte at a time doesn't keep a connection forever
+          (funHttpServer.headerTimeout)
+- write   for the client to take response bytes (funHttpServer.writeTimeout).
+          This one only fires if nothing at all was written for that long,
+          a slow but steady download is fine.
+While a route works on the response there is no deadline, routes limit their
+own waiting (e.g. funHttpServer.upstreamTimeout).
+
+Request bodies are never read (a request with a body is answered and the
+connection closed), so there is no deadline for them.
+
+When a deadline passes the connection is closed through the callback given
+by its engine, and counted in /metrics.
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+final class Deadline {
+  enum Kind { IDLE, HEADER, WRITE }
+
+  static final Config.Setting<Integer> HEADER_TIMEOUT_MILLIS = Config.intSetting("headerTimeout", 10000);
+  static final Config.Setting<Integer> WRITE_TIMEOUT_MILLIS = Config.intSetting("writeTimeout", 30000);
+
+  /** shared by all connections, 100 ms ticks, 512 slots (a bit over 50 s per round) */
+  static final TimerWheel wheel = new TimerWheel(100, 512, "deadline-timer");
+
+  private final Runnable onExpiry;
+  // guarded by this
+  private Kind kind;
+  private TimerWheel.Timeout timeout;
+  private LongSupplier progress;
+  private long seen;
+  // arming again makes a timeout that is about to fire stale
+  private long generation = 0;
+  private volatile Kind expired;
+
+  /**
+   * @param onExpiry closes the connection, runs on the timer thread
+   */
+  Deadline(Runnable onExpiry) {
+    this.onExpiry = onExpiry;
+  }
+
+  static long millis(Kind kind) {
+    switch (kind) {
+      case IDLE:
+        return WebServer.IDLE_TIMEOUT_MILLIS.get();
+      case HEADER:
+        return HEADER_TIMEOUT_MILLIS.get();
+      default:
+        return WRITE_TIMEOUT_MILLIS.get();
+    }
+  }
+
+  /**
+   * Replaces the current deadline
+   */
+  void arm(Kind kind) {
+    arm(kind, null);
+  }
+
+  /**
+   * Replaces the current deadline with one that is pushed back as long as
+   * progress keeps changing
+   * @param progress e.g. bytes written so far, null to expire regardless
+   */
+  synchronized void arm(Kind kind, LongSupplier progress) {
+    if (expired != null) {
+      return;
+    }
+    if (timeout != null) {
+      timeout.cancel();
+    }
+    this.kind = kind;
+    this.progress = progress;
+    this.seen = progress != null ? progress.getAsLong() : 0;
+    schedule();
+  }
+
+  private void schedule() {
+    long armed = ++generation;
+    timeout = wheel.schedule(millis(kind), TimeUnit.MILLISECONDS, () -> fire(armed));
+  }
+
+  /**
+   * No deadline until the next arm
+   */
+  synchronized void cancel() {
+    if (timeout != null) {
+      timeout.cancel();
+      timeout = null;
+    }
+    kind = null;
+    generation++;
+  }
+
+  /**
+   * @return the deadline armed right now, null if none
+   */
+  synchronized Kind armed() {
+    return kind;
+  }
+
+  /**
+   * @return the deadline that closed the connection, null if none did
+   */
+  Kind expired() {
+    return expired;
+  }
+
+  private void fire(long armed) {
+    synchronized (this) {
+      if (armed != generation) {
+        return;
+      }
+      if (progress != null) {
+        long now = progress.getAsLong();
+        if (now != seen) {
+          // still moving, give it another period
+          seen = now;
+          schedule();
+          return;
+        }
+      }
+      expired = kind;
+      timeout = null;
+    }
+    Metrics.timedOut(expired);
+    Log.debug("Connection closed, " + expired.name().toLowerCase() + " deadline passed");
+    onExpiry.run();
+  }
+
+  /**
+   * Wraps a blocking stream to the client so every write runs under the
+   * write deadline
+   */
+  OutputStream guard(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        arm(Kind.WRITE);
+        try {
+          out.write(b);
+        } finally {
+          cancel();
+        }
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        arm(Kind.WRITE);
+        try {
+          out.write(b, off, len);
+        } finally {
+          cancel();
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,207 @@
+/*
+In-memory cache for files served from the docroot. Hot pages like
+www/root.html and www/index.html are kept as byte arrays so repeated hits
+don't read the file again. Each hit only compares the file's modification
+time and size with the cached copy (a stat, no read), and a changed file is
+loaded again. The total size of all cached files is held under a budget by
+evicting the least recently used entries.
+
+Compressed variants (gzip, deflate) are made from the cached copy the first
+time a client asks for them and kept with it, counted against the same
+budget, so later hits send them without compressing again.
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+class FileCache {
+  // changed through budget(long), read outside the lock in get
+  private volatile long budget;
+  private long used = 0;
+
+  // access ordered, so iteration starts at the least recently used entry
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder compressions = new LongAdder();
+
+  /**
+   * A cached file together with the version it was read from
+   */
+  static class Entry {
+    final byte[] data;
+    final long lastModified;
+    final long length;
+    // compressed variants, guarded by the cache
+    byte[] gzip;
+    byte[] deflate;
+
+    Entry(byte[] data, long lastModified, long length) {
+      this.data = data;
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+
+    byte[] variant(String encoding) {
+      return Compression.GZIP.equals(encoding) ? gzip : deflate;
+    }
+
+    /**
+     * @return bytes held, variants included
+     */
+    long size() {
+      return data.length + (gzip != null ? gzip.length : 0) + (deflate != null ? deflate.length : 0);
+    }
+  }
+
+  /**
+   * @param budget maximum number of bytes kept in memory
+   */
+  FileCache(long budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * Changes the budget, a smaller one evicts right away
+   * @param budget maximum number of bytes kept in memory
+   */
+  synchronized void budget(long budget) {
+    this.budget = budget;
+    evict(null);
+  }
+
+  /**
+   * Returns the content of the file, from memory if the cached copy is still current
+   * @param f file to read
+   * @return the file content, must not be modified by the caller
+   * @throws IOException if the file cannot be read
+   */
+  byte[] get(File f) throws IOException {
+    String key = f.getPath();
+    // take the version before reading so a concurrent change is seen next time
+    long lastModified = f.lastModified();
+    long length = f.length();
+
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+        hits.increment();
+        return entry.data;
+      }
+    }
+
+    misses.increment();
+    byte[] data = WebServer.readFileInBytes(f);
+    if (data.length <= budget) {
+      put(key, new Entry(data, lastModified, length));
+    }
+    return data;
+  }
+
+  /**
+   * Returns the file compressed, from memory if the cached copy is current
+   * and has been compressed before
+   * @param f file to read
+   * @param encoding Compression.GZIP or Compression.DEFLATE
+   * @return the encoded content, must not be modified by the caller, or
+   *         null if the file is too big to be cached
+   * @throws IOException if the file cannot be read
+   */
+  byte[] get(File f, String encoding) throws IOException {
+    byte[] data = get(f);
+    String key = f.getPath();
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry == null || entry.data != data) {
+        return null;
+      }
+      byte[] encoded = entry.variant(encoding);
+      if (encoded != null) {
+        return encoded;
+      }
+    }
+
+    // outside the lock, two requests may both compress a new file once
+    byte[] encoded = Compression.compress(data, encoding);
+    compressions.increment();
+    synchronized (this) {
+      if (entries.get(key) == entry && entry.variant(encoding) == null) {
+        if (Compression.GZIP.equals(encoding)) {
+          entry.gzip = encoded;
+        } else {
+          entry.deflate = encoded;
+        }
+        used += encoded.length;
+        evict(entry);
+      }
+    }
+    return encoded;
+  }
+
+  private synchronized void put(String key, Entry entry) {
+    Entry old = entries.put(key, entry);
+    if (old != null) {
+      used -= old.size();
+    }
+    used += entry.size();
+    evict(entry);
+  }
+
+  /**
+   * Drops least recently used entries until the budget is met
+   * @param keep entry that stays even if it is the eldest
+   */
+  private void evict(Entry keep) {
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (used > budget && it.hasNext()) {
+      Map.Entry<String, Entry> eldest = it.next();
+      if (eldest.getValue() == keep) {
+        continue;
+      }
+      used -= eldest.getValue().size();
+      it.remove();
+      evictions.increment();
+    }
+  }
+
+  long hits() {
+    return hits.sum();
+  }
+
+  long misses() {
+    return misses.sum();
+  }
+
+  long evictions() {
+    return evictions.sum();
+  }
+
+  long compressions() {
+    return compressions.sum();
+  }
+
+  synchronized long usedBytes() {
+    return used;
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return one line summary of the cache counters
+   */
+  String stats() {
+    return "entries=" + size() + " bytes=" + usedBytes() + "/" + budget
+        + " hits=" + hits() + " misses=" + misses() + " evictions=" + evictions()
+        + " compressions=" + compressions();
+  }
+}
@@ -0,0 +1,353 @@
+/*
+Pull style JSON tokenizer. next() reads just far enough to return the next
+token (start/end of an object or array, a member name or a value), so a
+document of any size is read in one pass through a small buffer and nothing
+like a tree of the whole document is ever built. Memory is the read buffer,
+the longest single string and the nesting depth.
+
+Besides the token the tokenizer keeps the path to it, written as member
+names joined with "." and "[]" for an array element, e.g. the login of the
+owner of every repo in a GitHub repo list is "[].owner.login". extract()
+uses that to pull a set of fields out of a document in one go.
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.util.function.BiConsumer;
+
+class JsonTokenizer {
+  static final int MAX_DEPTH = 256;
+
+  enum Token {
+    BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, TRUE, FALSE, NULL, END
+  }
+
+  /**
+   * The input is not valid JSON
+   */
+  static class SyntaxError extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    SyntaxError(String message) {
+      super(message);
+    }
+  }
+
+  // what is expected next, per open container
+  private static final byte TOP = 0;
+  private static final byte TOP_DONE = 1;
+  private static final byte OBJECT_FIRST = 2;
+  private static final byte OBJECT_NEXT = 3;
+  private static final byte OBJECT_VALUE = 4;
+  private static final byte ARRAY_FIRST = 5;
+  private static final byte ARRAY_NEXT = 6;
+
+  private final Reader in;
+  private final char[] buf = new char[8192];
+  private int pos = 0;
+  private int limit = 0;
+  private long offset = 0;
+
+  private final byte[] states = new byte[MAX_DEPTH + 1];
+  // path length at the start of each open container
+  private final int[] bases = new int[MAX_DEPTH + 1];
+  private int depth = 0;
+
+  private final StringBuilder text = new StringBuilder();
+  private final StringBuilder path = new StringBuilder();
+
+  /**
+   * @param in the document, read as far as needed on every next()
+   */
+  JsonTokenizer(Reader in) {
+    this.in = in;
+    states[0] = TOP;
+  }
+
+  /**
+   * Reads the next token
+   * @return the token, END once the document is complete
+   * @throws SyntaxError if the input is not valid JSON
+   * @throws IOException if reading fails
+   */
+  Token next() throws IOException {
+    int c = skipWhitespace();
+    switch (states[depth]) {
+      case TOP:
+        if (c < 0) {
+          throw error("empty document");
+        }
+        states[depth] = TOP_DONE;
+        return value(c);
+      case TOP_DONE:
+        if (c >= 0) {
+          throw error("data after the end of the document");
+        }
+        return Token.END;
+      case OBJECT_FIRST:
+        if (c == '}') {
+          return pop(Token.END_OBJECT);
+        }
+        return name(c);
+      case OBJECT_NEXT:
+        if (c == '}') {
+          return pop(Token.END_OBJECT);
+        }
+        if (c != ',') {
+          throw error("expected ',' or '}'");
+        }
+        return name(skipWhitespace());
+      case OBJECT_VALUE:
+        if (c != ':') {
+          throw error("expected ':'");
+        }
+        states[depth] = OBJECT_NEXT;
+        return value(skipWhitespace());
+      case ARRAY_FIRST:
+        if (c == ']') {
+          return pop(Token.END_ARRAY);
+        }
+        states[depth] = ARRAY_NEXT;
+        element();
+        return value(c);
+      default:
+        if (c == ']') {
+          return pop(Token.END_ARRAY);
+        }
+        if (c != ',') {
+          throw error("expected ',' or ']'");
+        }
+        element();
+        return value(skipWhitespace());
+    }
+  }
+
+  /**
+   * @return the member name or the value of the last NAME, STRING or NUMBER token
+   */
+  String text() {
+    return text.toString();
+  }
+
+  /**
+   * @return path of the last token, the member for NAME and the container for
+   *         BEGIN and END tokens. Only valid until the next call of next()
+   */
+  CharSequence path() {
+    return path;
+  }
+
+  /**
+   * Reads the rest of the document and hands the fields asked for to sink
+   * @param paths paths of the scalar values wanted, e.g. "[].owner.login"
+   * @param sink called with path and text of each wanted value in document
+   *        order, "true", "false" and "null" for the literals
+   * @throws IOException if reading fails or the input is not valid JSON
+   */
+  void extract(String[] paths, BiConsumer<String, String> sink) throws IOException {
+    Token token;
+    while ((token = next()) != Token.END) {
+      if (token == Token.NAME || token == Token.BEGIN_OBJECT || token == Token.END_OBJECT
+          || token == Token.BEGIN_ARRAY || token == Token.END_ARRAY) {
+        continue;
+      }
+      for (String wanted : paths) {
+        if (wanted.contentEquals(path)) {
+          sink.accept(wanted, text());
+          break;
+        }
+      }
+    }
+  }
+
+  private Token name(int c) throws IOException {
+    if (c != '"') {
+      throw error("expected a member name");
+    }
+    readString();
+    states[depth] = OBJECT_VALUE;
+    path.setLength(bases[depth]);
+    if (path.length() > 0) {
+      path.append('.');
+    }
+    path.append(text);
+    return Token.NAME;
+  }
+
+  private void element() {
+    path.setLength(bases[depth]);
+    path.append("[]");
+  }
+
+  private Token value(int c) throws IOException {
+    switch (c) {
+      case '{':
+        push(OBJECT_FIRST);
+        return Token.BEGIN_OBJECT;
+      case '[':
+        push(ARRAY_FIRST);
+        return Token.BEGIN_ARRAY;
+      case '"':
+        readString();
+        return Token.STRING;
+      case 't':
+        return literal("true", Token.TRUE);
+      case 'f':
+        return literal("false", Token.FALSE);
+      case 'n':
+        return literal("null", Token.NULL);
+      default:
+        if (c == '-' || (c >= '0' && c <= '9')) {
+          readNumber(c);
+          return Token.NUMBER;
+        }
+        throw error(c < 0 ? "unexpected end of document" : "unexpected character '" + (char) c + "'");
+    }
+  }
+
+  private void push(byte state) throws SyntaxError {
+    if (depth == MAX_DEPTH) {
+      throw error("nested deeper than " + MAX_DEPTH);
+    }
+    depth++;
+    states[depth] = state;
+    bases[depth] = path.length();
+  }
+
+  private Token pop(Token token) {
+    path.setLength(bases[depth]);
+    depth--;
+    return token;
+  }
+
+  private Token literal(String word, Token token) throws IOException {
+    for (int i = 1; i < word.length(); i++) {
+      if (read() != word.charAt(i)) {
+        throw error("expected " + word);
+      }
+    }
+    text.setLength(0);
+    text.append(word);
+    return token;
+  }
+
+  private void readNumber(int c) throws IOException {
+    text.setLength(0);
+    text.append((char) c);
+    while (true) {
+      c = peek();
+      if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+        text.append((char) c);
+        pos++;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void readString() throws IOException {
+    text.setLength(0);
+    while (true) {
+      // copy plain runs straight from the buffer
+      int start = pos;
+      while (pos < limit && buf[pos] != '"' && buf[pos] != '\\' && buf[pos] >= ' ') {
+        pos++;
+      }
+      text.append(buf, start, pos - start);
+
+      int c = read();
+      if (c == '"') {
+        return;
+      }
+      if (c == '\\') {
+        escape();
+      } else if (c < 0) {
+        throw error("unterminated string");
+      } else if (c < ' ') {
+        throw error("control character in string");
+      } else {
+        // the buffer ran out in the middle of a run
+        text.append((char) c);
+      }
+    }
+  }
+
+  private void escape() throws IOException {
+    int c = read();
+    switch (c) {
+      case '"':
+      case '\\':
+      case '/':
+        text.append((char) c);
+        break;
+      case 'b':
+        text.append('\b');
+        break;
+      case 'f':
+        text.append('\f');
+        break;
+      case 'n':
+        text.append('\n');
+        break;
+      case 'r':
+        text.append('\r');
+        break;
+      case 't':
+        text.append('\t');
+        break;
+      case 'u':
+        int code = 0;
+        for (int i = 0; i < 4; i++) {
+          int digit = Character.digit(read(), 16);
+          if (digit < 0) {
+            throw error("bad \\u escape");
+          }
+          code = code * 16 + digit;
+        }
+        text.append((char) code);
+        break;
+      default:
+        throw error("bad escape");
+    }
+  }
+
+  private int skipWhitespace() throws IOException {
+    while (true) {
+      int c = read();
+      if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+        return c;
+      }
+    }
+  }
+
+  private int read() throws IOException {
+    if (pos == limit && !fill()) {
+      return -1;
+    }
+    return buf[pos++];
+  }
+
+  private int peek() throws IOException {
+    if (pos == limit && !fill()) {
+      return -1;
+    }
+    return buf[pos];
+  }
+
+  private boolean fill() throws IOException {
+    offset += limit;
+    pos = 0;
+    limit = 0;
+    int n = in.read(buf, 0, buf.length);
+    if (n <= 0) {
+      return false;
+    }
+    limit = n;
+    return true;
+  }
+
+  private SyntaxError error(String message) {
+    return new SyntaxError(message + " at offset " + (offset + pos));
+  }
+}
@@ -0,0 +1,538 @@
+/*
+Load generator for the fun web server. Starts the server in this JVM on a free
+port, drives it over keep-alive HTTP/1.1 connections with a mix of routes and
+prints the throughput and the latency percentiles.
+
+Two ways to generate load:
+- closed  every connection sends its next request as soon as the previous
+          answer is in (as many requests in flight as connections)
+- open    requests are due at a fixed rate no matter how fast the server
+          answers, connections pick up whatever request is due next
+
+A closed loop hides stalls: while the server hangs, the clients wait along
+with it and simply don't send the requests they would have sent, so a one
+second stall shows up as one slow request instead of many (coordinated
+omission). The open loop therefore measures every request from the time it
+was due rather than the time it was sent. For the closed loop the measured
+histogram is corrected afterwards: a request that took longer than the usual
+(median) time between two requests on a connection stands in for the
+requests that should have been sent meanwhile. Both the measured service
+time and the corrected latency are reported.
+
+Arguments are name=value pairs, all optional:
+mode=single|virtual|pool|nio   how the server handles connections (default virtual)
+load=closed|open               (default closed)
+connections=16                 connections kept open to the server
+rate=2000                      requests per second for the open loop
+duration=10                    seconds measured
+warmup=3                       seconds run before measuring, not counted
+routes=/:4,/random:2,...       request targets with their weight
+encoding=gzip                  sent as Accept-Encoding (default none, uncompressed answers)
+
+The server and the generator share the machine, so the numbers are for
+comparing two versions of the server on the same laptop, not absolute.
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+final class LoadGenerator {
+  static final String DEFAULT_ROUTES =
+      "/:4,/random:2,/json:2,/file/www/index.html:1,/multiply?num1=3&num2=4:1";
+
+  /**
+   * One request target of the mix
+   */
+  static final class Route {
+    final String target;
+    final int weight;
+    final byte[] request;
+    final Metrics.Histogram latency = new Metrics.Histogram();
+
+    Route(String target, int weight, String host, String encoding) {
+      this.target = target;
+      this.weight = weight;
+      this.request = ("GET " + target + " HTTP/1.1\r\n"
+          + "Host: " + host + "\r\n"
+          + "User-Agent: funHttpServer-load\r\n"
+          + "Accept: */*\r\n"
+          + (encoding != null ? "Accept-Encoding: " + encoding + "\r\n" : "")
+          + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  private final String host;
+  private final int port;
+  private final List<Route> routes;
+  private final int totalWeight;
+  private final boolean open;
+  private final int connections;
+  private final long intervalNanos;
+
+  // what the server was asked to do, measured from the intended send time
+  // in the open loop and from the actual send time in the closed loop
+  private final Metrics.Histogram latency = new Metrics.Histogram();
+  // how long the server took once a request was actually sent
+  private final Metrics.Histogram service = new Metrics.Histogram();
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder reconnects = new LongAdder();
+  // every status code seen, whatever the server answers
+  private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+  private volatile boolean recording = false;
+  private volatile long stopAt;
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq < 0) {
+        throw new IllegalArgumentException("Expected name=value, got " + arg);
+      }
+      options.put(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+    WebServer.Mode mode = WebServer.Mode.valueOf(options.getOrDefault("mode", "virtual").toUpperCase());
+    String load = options.getOrDefault("load", "closed");
+    if (!load.equals("closed") && !load.equals("open")) {
+      throw new IllegalArgumentException("load must be closed or open, got " + load);
+    }
+    int connections = Integer.parseInt(options.getOrDefault("connections", "16"));
+    double rate = Double.parseDouble(options.getOrDefault("rate", "2000"));
+    int duration = Integer.parseInt(options.getOrDefault("duration", "10"));
+    int warmup = Integer.parseInt(options.getOrDefault("warmup", "3"));
+    String mix = options.getOrDefault("routes", DEFAULT_ROUTES);
+    String encoding = options.get("encoding");
+
+    // the server under test is tuned like a real one, only port and mode come from here
+    Config.load();
+    int port = freePort();
+    int threads = Integer.getInteger("funHttpServer.threads", WebServer.DEFAULT_POOL_SIZE);
+    Thread server = new Thread(() -> new WebServer(port, mode, threads), "server");
+    server.setDaemon(true);
+    server.start();
+    awaitListening(port);
+
+    LoadGenerator generator = new LoadGenerator("localhost", port, mix, encoding,
+        load.equals("open"), connections, rate);
+    System.out.println("Server mode " + mode.name().toLowerCase() + " on port " + port + ", "
+        + load + " loop with " + connections + " connections"
+        + (load.equals("open") ? " at " + rate + " requests/s" : "")
+        + ", " + warmup + " s warmup, " + duration + " s measured");
+    generator.run(warmup, duration);
+    System.out.print(generator.report(duration));
+    // the server threads don't stop on their own
+    System.exit(0);
+  }
+
+  LoadGenerator(String host, int port, String mix, String encoding, boolean open, int connections, double rate) {
+    this.host = host;
+    this.port = port;
+    this.routes = parseRoutes(mix, host + ":" + port, encoding);
+    int weights = 0;
+    for (Route route : routes) {
+      weights += route.weight;
+    }
+    this.totalWeight = weights;
+    this.open = open;
+    this.connections = connections;
+    this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+  }
+
+  /**
+   * @param mix comma separated targets, each optionally followed by :weight
+   * @param encoding Accept-Encoding sent with every request, null for none
+   */
+  static List<Route> parseRoutes(String mix, String host, String encoding) {
+    List<Route> routes = new ArrayList<>();
+    for (String entry : mix.split(",")) {
+      entry = entry.trim();
+      if (entry.isEmpty()) {
+        continue;
+      }
+      int weight = 1;
+      int colon = entry.lastIndexOf(':');
+      if (colon > 0) {
+        weight = Integer.parseInt(entry.substring(colon + 1));
+        entry = entry.substring(0, colon);
+      }
+      if (!entry.startsWith("/") || weight < 1) {
+        throw new IllegalArgumentException("Bad route " + entry + " with weight " + weight);
+      }
+      routes.add(new Route(entry, weight, host, encoding));
+    }
+    if (routes.isEmpty()) {
+      throw new IllegalArgumentException("No routes given");
+    }
+    return routes;
+  }
+
+  /**
+   * @return a port nobody listens on right now
+   */
+  static int freePort() throws IOException {
+    try (ServerSocket probe = new ServerSocket(0)) {
+      return probe.getLocalPort();
+    }
+  }
+
+  private static void awaitListening(int port) throws InterruptedException, IOException {
+    for (int attempt = 0; ; attempt++) {
+      try (Socket probe = new Socket()) {
+        probe.connect(new InetSocketAddress("localhost", port), 1000);
+        return;
+      } catch (IOException e) {
+        if (attempt == 50) {
+          throw new IOException("Server did not start listening on port " + port, e);
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  /**
+   * Runs the warmup, then the measured period, then waits for the connections
+   * to finish their last request
+   */
+  void run(int warmupSeconds, int durationSeconds) throws InterruptedException {
+    long start = System.nanoTime();
+    long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+    stopAt = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+    // the open loop schedule is shared, connection picks the next slot
+    AtomicLong nextSlot = new AtomicLong();
+
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < connections; i++) {
+      Thread thread = new Thread(() -> drive(start, nextSlot), "load-" + i);
+      thread.setDaemon(true);
+      threads.add(thread);
+      thread.start();
+    }
+    LockSupport.parkNanos(measureFrom - System.nanoTime());
+    recording = true;
+    for (Thread thread : threads) {
+      thread.join();
+    }
+  }
+
+  /**
+   * One connection's loop
+   */
+  private void drive(long start, AtomicLong nextSlot) {
+    Client client = new Client();
+    try {
+      while (true) {
+        long intended = 0;
+        if (open) {
+          intended = start + nextSlot.getAndIncrement() * intervalNanos;
+          if (intended >= stopAt) {
+            return;
+          }
+          long wait = intended - System.nanoTime();
+          if (wait > 0) {
+            LockSupport.parkNanos(wait);
+          }
+        } else if (System.nanoTime() >= stopAt) {
+          return;
+        }
+        Route route = pick();
+        long sent = System.nanoTime();
+        if (!open) {
+          // the corrected closed loop latency is worked out in report()
+          intended = sent;
+        }
+        boolean counted = recording;
+        int status;
+        try {
+          status = client.exchange(route.request);
+        } catch (IOException e) {
+          if (counted) {
+            errors.increment();
+          }
+          client.close();
+          continue;
+        }
+        long done = System.nanoTime();
+        if (counted) {
+          latency.record(done - intended);
+          service.record(done - sent);
+          route.latency.record(done - intended);
+          completed.increment();
+          statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+          if (status >= 400) {
+            errors.increment();
+          }
+        }
+      }
+    } finally {
+      client.close();
+    }
+  }
+
+  private Route pick() {
+    int ticket = ThreadLocalRandom.current().nextInt(totalWeight);
+    for (Route route : routes) {
+      ticket -= route.weight;
+      if (ticket < 0) {
+        return route;
+      }
+    }
+    return routes.get(routes.size() - 1);
+  }
+
+  /**
+   * Adds the samples a closed loop didn't send while it waited: every value
+   * longer than the expected interval also counts as value - interval,
+   * value - 2 * interval and so on down to the interval
+   * @param snapshot measured histogram, Metrics.Histogram.snapshot()
+   * @param expectedMicros usual time between two requests on a connection
+   * @return corrected copy of the histogram
+   */
+  static long[] correctForOmission(long[] snapshot, long expectedMicros) {
+    long[] corrected = snapshot.clone();
+    if (expectedMicros <= 0) {
+      return corrected;
+    }
+    for (int i = 0; i < snapshot.length; i++) {
+      if (snapshot[i] == 0) {
+        continue;
+      }
+      for (long missing = Metrics.Histogram.upperBound(i) - expectedMicros;
+          missing >= expectedMicros; missing -= expectedMicros) {
+        corrected[Metrics.Histogram.bucket(missing)] += snapshot[i];
+      }
+    }
+    return corrected;
+  }
+
+  /**
+   * @return highest non empty bucket's upper bound, in microseconds
+   */
+  static long max(long[] snapshot) {
+    for (int i = snapshot.length - 1; i >= 0; i--) {
+      if (snapshot[i] > 0) {
+        return Metrics.Histogram.upperBound(i);
+      }
+    }
+    return 0;
+  }
+
+  String report(int durationSeconds) {
+    long[] serviceTimes = service.snapshot();
+    long[] latencies = latency.snapshot();
+    long expected = 0;
+    if (!open) {
+      expected = Metrics.Histogram.quantile(serviceTimes, 0.5);
+      latencies = correctForOmission(latencies, expected);
+    }
+
+    StringBuilder out = new StringBuilder();
+    long requests = completed.sum();
+    out.append(String.format("%nrequests %d, errors %d, reconnects %d, throughput %.1f requests/s%n",
+        requests, errors.sum(), reconnects.sum(), requests / (double) durationSeconds));
+    out.append("statuses");
+    statuses.entrySet().stream()
+        .filter(e -> e.getValue().sum() > 0)
+        .sorted(Map.Entry.comparingByKey())
+        .forEach(e -> out.append(' ').append(e.getKey()).append('=').append(e.getValue().sum()));
+    out.append(String.format("%n%nlatency in ms%26s%10s%10s%10s%n", "p50", "p99", "p99.9", "max"));
+    row(out, "service time (as sent)", serviceTimes);
+    row(out, open ? "latency (from schedule)" : "latency (corrected)", latencies);
+    if (!open) {
+      out.append(String.format("corrected for coordinated omission with an expected interval of %.3f ms%n",
+          expected / 1000.0));
+    }
+    out.append(String.format("%nper route%n"));
+    for (Route route : routes) {
+      long[] times = route.latency.snapshot();
+      if (!open) {
+        times = correctForOmission(times, expected);
+      }
+      row(out, route.target, times);
+    }
+    return out.toString();
+  }
+
+  private static void row(StringBuilder out, String label, long[] snapshot) {
+    if (label.length() > 34) {
+      label = label.substring(0, 31) + "...";
+    }
+    out.append(String.format("%-34s%10.3f%10.3f%10.3f%10.3f%n", label,
+        Metrics.Histogram.quantile(snapshot, 0.5) / 1000.0,
+        Metrics.Histogram.quantile(snapshot, 0.99) / 1000.0,
+        Metrics.Histogram.quantile(snapshot, 0.999) / 1000.0,
+        max(snapshot) / 1000.0));
+  }
+
+  /**
+   * Blocking HTTP/1.1 client on one keep-alive connection, reconnects when
+   * the server closes it
+   */
+  private final class Client {
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    // whether the connection already carried a request, the server may have
+    // closed it since then (idle timeout or request limit)
+    private boolean reused;
+
+    /**
+     * Sends the request and reads the whole response
+     * @return the response status code
+     */
+    int exchange(byte[] request) throws IOException {
+      if (socket == null) {
+        connect();
+      }
+      try {
+        return send(request);
+      } catch (IOException e) {
+        if (!reused) {
+          throw e;
+        }
+        // stale keep-alive connection, one more try on a fresh one
+        close();
+        connect();
+        return send(request);
+      }
+    }
+
+    private void connect() throws IOException {
+      socket = new Socket();
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress(host, port), 5000);
+      socket.setSoTimeout(30000);
+      in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+      out = socket.getOutputStream();
+      reused = false;
+      if (recording) {
+        reconnects.increment();
+      }
+    }
+
+    private int send(byte[] request) throws IOException {
+      out.write(request);
+      out.flush();
+      String statusLine = readLine();
+      if (statusLine == null) {
+        throw new EOFException("Connection closed before the response");
+      }
+      reused = true;
+      String[] parts = statusLine.split(" ", 3);
+      if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+        throw new IOException("Bad status line: " + statusLine);
+      }
+      int status = Integer.parseInt(parts[1]);
+
+      long length = -1;
+      boolean chunked = false;
+      boolean close = parts[0].equals("HTTP/1.0");
+      String line;
+      while ((line = readLine()) != null && !line.isEmpty()) {
+        int colon = line.indexOf(':');
+        if (colon < 0) {
+          continue;
+        }
+        String name = line.substring(0, colon).trim();
+        String value = line.substring(colon + 1).trim();
+        if (name.equalsIgnoreCase("Content-Length")) {
+          length = Long.parseLong(value);
+        } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+          chunked = value.toLowerCase().contains("chunked");
+        } else if (name.equalsIgnoreCase("Connection")) {
+          close = value.equalsIgnoreCase("close");
+        }
+      }
+      if (line == null) {
+        throw new EOFException("Connection closed in the response header");
+      }
+
+      if (chunked) {
+        long size;
+        while ((size = Long.parseLong(chunkSize(readLine()), 16)) > 0) {
+          skip(size + 2);
+        }
+        // trailer
+        while ((line = readLine()) != null && !line.isEmpty()) {
+        }
+      } else if (length >= 0) {
+        skip(length);
+      } else {
+        // body runs until the server closes
+        while (in.read() >= 0) {
+        }
+        close = true;
+      }
+      if (close) {
+        close();
+      }
+      return status;
+    }
+
+    private String chunkSize(String line) throws EOFException {
+      if (line == null) {
+        throw new EOFException("Connection closed in a chunked body");
+      }
+      int semicolon = line.indexOf(';');
+      return (semicolon < 0 ? line : line.substring(0, semicolon)).trim();
+    }
+
+    private void skip(long count) throws IOException {
+      while (count > 0) {
+        long skipped = in.skip(count);
+        if (skipped <= 0) {
+          if (in.read() < 0) {
+            throw new EOFException("Connection closed in the response body");
+          }
+          skipped = 1;
+        }
+        count -= skipped;
+      }
+    }
+
+    /**
+     * @return the next line without CRLF, null at the end of the stream
+     */
+    private String readLine() throws IOException {
+      StringBuilder line = new StringBuilder(64);
+      int b;
+      while ((b = in.read()) >= 0) {
+        if (b == '\n') {
+          int end = line.length();
+          if (end > 0 && line.charAt(end - 1) == '\r') {
+            line.setLength(end - 1);
+          }
+          return line.toString();
+        }
+        line.append((char) b);
+      }
+      return line.length() == 0 ? null : line.toString();
+    }
+
+    void close() {
+      if (socket != null) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // already gone
+        }
+        socket = null;
+      }
+    }
+  }
+}
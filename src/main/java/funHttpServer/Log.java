@@ -0,0 +1,264 @@
+/*
+Asynchronous logger. Request threads never write to the console or a file
+themselves (System.out takes a lock on every println, so all threads logging
+end up waiting on each other): a message is put into a ring buffer with one
+compare-and-set and a background thread formats and writes the messages in
+batches, flushing whenever the buffer runs empty. An idle writer sleeps until
+the next message arrives, it doesn't poll.
+
+When the writer falls behind and the buffer is full, a message is either
+dropped and counted (the default, request threads never wait) or the caller
+waits for room. Dropped messages are reported in the log once the writer
+catches up.
+
+Configured with system properties:
+funHttpServer.logLevel     DEBUG, INFO, WARN or ERROR (default INFO)
+funHttpServer.logFile      file to append to (default stdout)
+funHttpServer.logBuffer    messages the ring buffer holds (default 8192, rounded up to a power of two)
+funHttpServer.logOverflow  drop or block (default drop)
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+final class Log {
+  enum Level { DEBUG, INFO, WARN, ERROR }
+
+  private static final DateTimeFormatter TIME =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+  /** how long a caller waits before looking for room again when the buffer is full (block) */
+  private static final long FULL_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+  /** bytes collected before they are written even if more messages are waiting */
+  private static final int BATCH_CHARS = 16 * 1024;
+
+  private static final boolean blockWhenFull = "block".equalsIgnoreCase(System.getProperty("funHttpServer.logOverflow"));
+
+  private static final int capacity = Integer.highestOneBit(Math.max(2,
+      Integer.getInteger("funHttpServer.logBuffer", 8192) * 2 - 1));
+  private static final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(capacity);
+  // next sequence a producer claims, and the next one the writer takes
+  private static final AtomicLong tail = new AtomicLong();
+  private static volatile long head = 0;
+  // set while the writer is parked (or about to be), producers then unpark it
+  private static volatile boolean sleeping = false;
+
+  private static final LongAdder dropped = new LongAdder();
+  private static final LongAdder written = new LongAdder();
+
+  private static volatile boolean closing = false;
+  private static final Writer out = open(System.getProperty("funHttpServer.logFile"));
+  private static final Thread writer = new Thread(Log::drain, "log-writer");
+
+  static {
+    writer.setDaemon(true);
+    writer.start();
+    // write out what is still buffered when the server stops
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      closing = true;
+      LockSupport.unpark(writer);
+      try {
+        writer.join(1000);
+      } catch (InterruptedException e) {
+        // exit anyway
+      }
+    }, "log-flush"));
+  }
+
+  // last, an invalid level is reported through the log while it is read
+  private static final Config.Setting<Level> threshold = Config.setting("logLevel", Level.INFO, Log::level);
+
+  /**
+   * One message as handed over by the logging thread
+   */
+  private static class Entry {
+    final long time;
+    final Level level;
+    final String thread;
+    final String message;
+    final Throwable error;
+
+    Entry(Level level, String message, Throwable error) {
+      this.time = System.currentTimeMillis();
+      this.level = level;
+      this.thread = Thread.currentThread().getName();
+      this.message = message;
+      this.error = error;
+    }
+  }
+
+  private Log() {
+  }
+
+  /**
+   * @throws IllegalArgumentException for an unknown name, Config warns and keeps the level
+   */
+  private static Level level(String name) {
+    return Level.valueOf(name.trim().toUpperCase());
+  }
+
+  private static Writer open(String file) {
+    if (file != null) {
+      try {
+        return new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+      } catch (IOException e) {
+        System.err.println("Cannot open log file " + file + ", logging to stdout: " + e.getMessage());
+      }
+    }
+    return new OutputStreamWriter(System.out);
+  }
+
+  /**
+   * @return true if messages of this level are written, check it before
+   *         building an expensive message
+   */
+  static boolean enabled(Level level) {
+    // null only while the threshold itself is being read at startup
+    return threshold == null || level.compareTo(threshold.get()) >= 0;
+  }
+
+  static void debug(String message) {
+    log(Level.DEBUG, message, null);
+  }
+
+  static void info(String message) {
+    log(Level.INFO, message, null);
+  }
+
+  static void warn(String message) {
+    log(Level.WARN, message, null);
+  }
+
+  static void warn(String message, Throwable error) {
+    log(Level.WARN, message, error);
+  }
+
+  static void error(String message, Throwable error) {
+    log(Level.ERROR, message, error);
+  }
+
+  /**
+   * Queues a message for the writer thread
+   * @param error printed with its stack trace after the message, may be null
+   */
+  static void log(Level level, String message, Throwable error) {
+    if (!enabled(level)) {
+      return;
+    }
+    Entry entry = new Entry(level, message, error);
+    while (true) {
+      long seq = tail.get();
+      if (seq - head >= capacity) {
+        // writer is a whole buffer behind
+        if (!blockWhenFull || closing) {
+          dropped.increment();
+          return;
+        }
+        LockSupport.parkNanos(FULL_WAIT_NANOS);
+        continue;
+      }
+      if (tail.compareAndSet(seq, seq + 1)) {
+        slots.set((int) seq & (capacity - 1), entry);
+        if (sleeping) {
+          LockSupport.unpark(writer);
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Writer thread: takes messages in order, formats them into one batch and
+   * writes the batch when the buffer runs empty or the batch is big enough
+   */
+  private static void drain() {
+    StringBuilder batch = new StringBuilder(BATCH_CHARS + 1024);
+    long reportedDrops = 0;
+    while (true) {
+      long seq = head;
+      int slot = (int) seq & (capacity - 1);
+      Entry entry = slots.get(slot);
+      if (entry != null) {
+        // free the slot before moving head, a producer may reuse it right after
+        slots.set(slot, null);
+        head = seq + 1;
+        format(entry, batch);
+        written.increment();
+        if (batch.length() >= BATCH_CHARS) {
+          write(batch);
+        }
+        continue;
+      }
+
+      long drops = dropped.sum();
+      if (drops > reportedDrops) {
+        format(new Entry(Level.WARN, (drops - reportedDrops) + " log messages dropped, the log buffer was full", null), batch);
+        reportedDrops = drops;
+      }
+      if (batch.length() > 0) {
+        write(batch);
+      }
+      if (closing && tail.get() == head) {
+        return;
+      }
+      // either empty or a producer claimed the slot and is about to fill it.
+      // A producer filling it after the check below sees sleeping and unparks
+      sleeping = true;
+      if (slots.get(slot) == null && !closing) {
+        LockSupport.park();
+      }
+      sleeping = false;
+    }
+  }
+
+  private static void format(Entry entry, StringBuilder batch) {
+    TIME.formatTo(Instant.ofEpochMilli(entry.time), batch);
+    batch.append(' ').append(entry.level);
+    if (entry.level.name().length() == 4) {
+      batch.append(' ');
+    }
+    batch.append(" [").append(entry.thread).append("] ").append(entry.message).append('\n');
+    if (entry.error != null) {
+      StringWriter trace = new StringWriter();
+      entry.error.printStackTrace(new PrintWriter(trace));
+      batch.append(trace);
+    }
+  }
+
+  private static void write(StringBuilder batch) {
+    try {
+      out.append(batch);
+      out.flush();
+    } catch (IOException e) {
+      // nowhere left to report it
+    }
+    batch.setLength(0);
+  }
+
+  static long dropped() {
+    return dropped.sum();
+  }
+
+  static long written() {
+    return written.sum();
+  }
+
+  /**
+   * @return one line summary of the logger counters
+   */
+  static String stats() {
+    return "level=" + threshold.get() + " buffered=" + (tail.get() - head) + "/" + capacity
+        + " written=" + written() + " dropped=" + dropped();
+  }
+}
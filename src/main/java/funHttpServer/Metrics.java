@@ -0,0 +1,375 @@
+/*
+Counters, gauges and latency histograms of the fun web server, served at
+/metrics in the Prometheus text format.
+
+Requests are timed in phases:
+- accept  from accept() returning until a thread starts serving the connection
+- parse   time spent parsing the request header
+- handle  from the parsed header until the route has produced its response
+- write   from there until the last byte is written to the socket
+and as a whole (parsed header to last byte written) per route, labelled with
+the route pattern ("/json", "/file/", "static" for files served from disk,
+"unmatched" for everything else) so the label values stay few.
+
+Everything is updated from many request threads at once, so counters are
+LongAdders and histograms spread their buckets over several stripes picked
+by thread, no two busy threads keep hitting the same cache line. Reading
+sums the stripes.
+*/
+
+package funHttpServer;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+final class Metrics {
+
+  /**
+   * Latency histogram in microseconds. Values below 16 have a bucket each,
+   * above that every power of two is split into 16 buckets, so a bucket is
+   * never more than about 6% wide and percentiles are read to that precision.
+   */
+  static final class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    // up to 2^40 us, about 12 days
+    private static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = SUB + (MAX_EXPONENT - SUB_BITS) * SUB;
+
+    private static final int STRIPES = Math.min(8,
+        Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)));
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+    private final LongAdder sumMicros = new LongAdder();
+
+    void record(long nanos) {
+      long micros = Math.max(0, nanos / 1000);
+      int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+      counts.incrementAndGet(stripe * BUCKETS + bucket(micros));
+      sumMicros.add(micros);
+    }
+
+    static int bucket(long micros) {
+      if (micros < SUB) {
+        return (int) micros;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(micros);
+      if (exponent >= MAX_EXPONENT) {
+        return BUCKETS - 1;
+      }
+      int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB - 1);
+      return SUB + (exponent - SUB_BITS) * SUB + sub;
+    }
+
+    /**
+     * @return largest value (in microseconds) that falls into the bucket
+     */
+    static long upperBound(int bucket) {
+      if (bucket < SUB) {
+        return bucket;
+      }
+      int shift = (bucket - SUB) / SUB;
+      long lower = (long) (SUB + (bucket - SUB) % SUB) << shift;
+      return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * @return counts per bucket, summed over the stripes
+     */
+    long[] snapshot() {
+      long[] merged = new long[BUCKETS];
+      for (int i = 0; i < counts.length(); i++) {
+        merged[i % BUCKETS] += counts.get(i);
+      }
+      return merged;
+    }
+
+    long sumMicros() {
+      return sumMicros.sum();
+    }
+
+    /**
+     * @param snapshot from snapshot()
+     * @param q quantile between 0 and 1
+     * @return upper bound of the bucket the quantile falls into, in microseconds
+     */
+    static long quantile(long[] snapshot, double q) {
+      long total = 0;
+      for (long c : snapshot) {
+        total += c;
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(q * total);
+      long seen = 0;
+      for (int i = 0; i < snapshot.length; i++) {
+        seen += snapshot[i];
+        if (seen >= Math.max(1, rank)) {
+          return upperBound(i);
+        }
+      }
+      return upperBound(snapshot.length - 1);
+    }
+  }
+
+  // bucket bounds exported to Prometheus, in seconds
+  private static final double[] EXPORTED_BOUNDS = {
+    0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+  };
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  static final Histogram ACCEPT = new Histogram();
+  static final Histogram PARSE = new Histogram();
+  static final Histogram HANDLE = new Histogram();
+  static final Histogram WRITE = new Histogram();
+
+  private static final ConcurrentHashMap<String, Histogram> routes = new ConcurrentHashMap<>();
+
+  private static final LongAdder[] responses = new LongAdder[600];
+  private static final LongAdder accepted = new LongAdder();
+  private static final LongAdder activeConnections = new LongAdder();
+  private static final LongAdder activeRequests = new LongAdder();
+  private static final LongAdder aborted = new LongAdder();
+  private static final LongAdder bytesIn = new LongAdder();
+  private static final LongAdder bytesOut = new LongAdder();
+  private static final LongAdder[] timeouts = new LongAdder[Deadline.Kind.values().length];
+
+  static {
+    for (int i = 0; i < responses.length; i++) {
+      responses[i] = new LongAdder();
+    }
+    for (int i = 0; i < timeouts.length; i++) {
+      timeouts[i] = new LongAdder();
+    }
+  }
+
+  private Metrics() {
+  }
+
+  /**
+   * A connection was accepted
+   */
+  static void accepted() {
+    accepted.increment();
+    activeConnections.increment();
+  }
+
+  static void connectionClosed() {
+    activeConnections.decrement();
+  }
+
+  /**
+   * A connection was closed because a deadline passed
+   */
+  static void timedOut(Deadline.Kind kind) {
+    timeouts[kind.ordinal()].increment();
+  }
+
+  /**
+   * Bytes read from a client
+   */
+  static void read(long bytes) {
+    bytesIn.add(bytes);
+  }
+
+  /**
+   * A request header was parsed and the request is being served
+   */
+  static void requestStarted() {
+    activeRequests.increment();
+  }
+
+  /**
+   * A started request was answered completely
+   * @param route pattern of the route that answered
+   * @param status status code sent
+   * @param bytes size of the whole response, header included
+   * @param nanos from the parsed header to the last byte written
+   */
+  static void requestDone(String route, int status, long bytes, long nanos) {
+    activeRequests.decrement();
+    routes.computeIfAbsent(route, r -> new Histogram()).record(nanos);
+    response(status, bytes);
+  }
+
+  /**
+   * A started request ended without a complete response, e.g. the client left
+   */
+  static void requestAborted() {
+    activeRequests.decrement();
+    aborted.increment();
+  }
+
+  /**
+   * A response was sent, also for requests that never got to a route
+   */
+  static void response(int status, long bytes) {
+    responses[status >= 0 && status < responses.length ? status : 0].increment();
+    bytesOut.add(bytes);
+  }
+
+  /**
+   * @return all metrics in the Prometheus text exposition format
+   */
+  static String prometheus() {
+    StringBuilder out = new StringBuilder(8192);
+
+    header(out, "funhttp_request_duration_seconds", "histogram",
+        "Time from parsed request header to the last byte of the response, by route");
+    Map<String, Histogram> sorted = new TreeMap<>(routes);
+    for (Map.Entry<String, Histogram> e : sorted.entrySet()) {
+      histogram(out, "funhttp_request_duration_seconds", "route", e.getKey(), e.getValue());
+    }
+    header(out, "funhttp_request_duration_quantile_seconds", "gauge",
+        "Percentiles of funhttp_request_duration_seconds since start, by route");
+    for (Map.Entry<String, Histogram> e : sorted.entrySet()) {
+      quantiles(out, "funhttp_request_duration_quantile_seconds", "route", e.getKey(), e.getValue());
+    }
+
+    header(out, "funhttp_phase_duration_seconds", "histogram",
+        "Time spent per phase: accept (queued before serving), parse, handle, write");
+    histogram(out, "funhttp_phase_duration_seconds", "phase", "accept", ACCEPT);
+    histogram(out, "funhttp_phase_duration_seconds", "phase", "parse", PARSE);
+    histogram(out, "funhttp_phase_duration_seconds", "phase", "handle", HANDLE);
+    histogram(out, "funhttp_phase_duration_seconds", "phase", "write", WRITE);
+    header(out, "funhttp_phase_duration_quantile_seconds", "gauge",
+        "Percentiles of funhttp_phase_duration_seconds since start");
+    quantiles(out, "funhttp_phase_duration_quantile_seconds", "phase", "accept", ACCEPT);
+    quantiles(out, "funhttp_phase_duration_quantile_seconds", "phase", "parse", PARSE);
+    quantiles(out, "funhttp_phase_duration_quantile_seconds", "phase", "handle", HANDLE);
+    quantiles(out, "funhttp_phase_duration_quantile_seconds", "phase", "write", WRITE);
+
+    header(out, "funhttp_responses_total", "counter", "Responses sent, by status code");
+    for (int status = 0; status < responses.length; status++) {
+      long n = responses[status].sum();
+      if (n > 0) {
+        out.append("funhttp_responses_total{status=\"").append(status).append("\"} ").append(n).append('\n');
+      }
+    }
+    counter(out, "funhttp_requests_aborted_total", "Requests that ended without a complete response", aborted.sum());
+    gauge(out, "funhttp_requests_active", "Requests being served right now", activeRequests.sum());
+    counter(out, "funhttp_connections_accepted_total", "Connections accepted", accepted.sum());
+    Acceptors acceptors = Acceptors.active();
+    if (acceptors != null) {
+      header(out, "funhttp_acceptor_accepted_total", "counter", "Connections accepted, by acceptor thread");
+      long[] counts = acceptors.accepted();
+      for (int i = 0; i < counts.length; i++) {
+        out.append("funhttp_acceptor_accepted_total{acceptor=\"").append(i).append("\"} ").append(counts[i]).append('\n');
+      }
+      List<Long> queues = acceptors.queues();
+      if (!queues.isEmpty()) {
+        header(out, "funhttp_accept_queue_length", "gauge",
+            "Connections waiting to be accepted, by listening socket (as listed by the kernel)");
+        for (int i = 0; i < queues.size(); i++) {
+          out.append("funhttp_accept_queue_length{listener=\"").append(i).append("\"} ")
+              .append(queues.get(i)).append('\n');
+        }
+        gauge(out, "funhttp_accept_queue_limit", "Connections each accept queue holds, the backlog capped by somaxconn",
+            Acceptors.queueLimit());
+      }
+    }
+    long[] overflows = Acceptors.listenOverflows();
+    if (overflows != null) {
+      counter(out, "funhttp_listen_overflows_total",
+          "Connections the kernel turned away because an accept queue was full, whole host", overflows[0]);
+      counter(out, "funhttp_listen_drops_total",
+          "SYNs dropped at listening sockets for any reason, overflows included, whole host", overflows[1]);
+    }
+    gauge(out, "funhttp_connections_active", "Connections open right now", activeConnections.sum());
+    header(out, "funhttp_connection_timeouts_total", "counter",
+        "Connections closed because a deadline passed: idle, header or write");
+    for (Deadline.Kind kind : Deadline.Kind.values()) {
+      out.append("funhttp_connection_timeouts_total{deadline=\"").append(kind.name().toLowerCase()).append("\"} ")
+          .append(timeouts[kind.ordinal()].sum()).append('\n');
+    }
+    gauge(out, "funhttp_deadlines_pending", "Deadlines armed on the timer wheel", Deadline.wheel.pending());
+    counter(out, "funhttp_received_bytes_total", "Bytes read from clients", bytesIn.sum());
+    counter(out, "funhttp_sent_bytes_total", "Bytes of responses sent to clients", bytesOut.sum());
+
+    FileCache files = WebServer.fileCache;
+    counter(out, "funhttp_file_cache_hits_total", "Docroot file cache hits", files.hits());
+    counter(out, "funhttp_file_cache_misses_total", "Docroot file cache misses", files.misses());
+    counter(out, "funhttp_file_cache_evictions_total", "Docroot file cache evictions", files.evictions());
+    gauge(out, "funhttp_file_cache_bytes", "Bytes held by the docroot file cache", files.usedBytes());
+    counter(out, "funhttp_file_cache_compressions_total", "Compressed variants made for cached files",
+        files.compressions());
+    FileCache fileRoute = WebServer.fileRouteCache;
+    counter(out, "funhttp_file_route_cache_evictions_total", "Evictions from the cache of /file/ targets outside the docroot",
+        fileRoute.evictions());
+    gauge(out, "funhttp_file_route_cache_bytes", "Bytes held by the cache of /file/ targets outside the docroot",
+        fileRoute.usedBytes());
+
+    counter(out, "funhttp_compression_in_bytes_total", "Body bytes compressed with gzip or deflate",
+        Compression.bytesIn());
+    counter(out, "funhttp_compression_out_bytes_total", "Compressed bytes those bodies came to",
+        Compression.bytesOut());
+
+    UpstreamCache github = WebServer.githubCache;
+    counter(out, "funhttp_github_cache_hits_total", "GitHub answers served fresh from the cache", github.hits());
+    counter(out, "funhttp_github_cache_stale_hits_total", "Expired GitHub answers served while refreshing", github.staleHits());
+    counter(out, "funhttp_github_cache_misses_total", "GitHub requests that went upstream", github.misses());
+    counter(out, "funhttp_github_cache_coalesced_total", "GitHub requests that joined a fetch already running", github.coalesced());
+    counter(out, "funhttp_github_cache_failures_total", "Failed GitHub fetches", github.failures());
+    gauge(out, "funhttp_github_cache_entries", "GitHub answers in the cache", github.size());
+
+    counter(out, "funhttp_log_written_total", "Log messages written", Log.written());
+    counter(out, "funhttp_log_dropped_total", "Log messages dropped because the log buffer was full", Log.dropped());
+    return out.toString();
+  }
+
+  private static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void counter(StringBuilder out, String name, String help, long value) {
+    header(out, name, "counter", help);
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void gauge(StringBuilder out, String name, String help, long value) {
+    header(out, name, "gauge", help);
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void histogram(StringBuilder out, String name, String label, String value, Histogram h) {
+    long[] snapshot = h.snapshot();
+    String labels = label + "=\"" + escape(value) + "\"";
+    long cumulative = 0;
+    int bucket = 0;
+    for (double bound : EXPORTED_BOUNDS) {
+      long boundMicros = Math.round(bound * 1_000_000);
+      while (bucket < snapshot.length && Histogram.upperBound(bucket) <= boundMicros) {
+        cumulative += snapshot[bucket++];
+      }
+      out.append(name).append("_bucket{").append(labels).append(",le=\"")
+          .append(BigDecimal.valueOf(bound).stripTrailingZeros().toPlainString()).append("\"} ")
+          .append(cumulative).append('\n');
+    }
+    while (bucket < snapshot.length) {
+      cumulative += snapshot[bucket++];
+    }
+    out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+    out.append(name).append("_sum{").append(labels).append("} ").append(h.sumMicros() / 1e6).append('\n');
+    out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+  }
+
+  private static void quantiles(StringBuilder out, String name, String label, String value, Histogram h) {
+    long[] snapshot = h.snapshot();
+    for (double q : QUANTILES) {
+      out.append(name).append('{').append(label).append("=\"").append(escape(value))
+          .append("\",quantile=\"").append(q).append("\"} ")
+          .append(Histogram.quantile(snapshot, q) / 1e6).append('\n');
+    }
+  }
+
+  private static String escape(String labelValue) {
+    return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
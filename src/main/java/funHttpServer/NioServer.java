@@ -0,0 +1,515 @@
+/*
+Non-blocking engine for the fun web server. Instead of one thread per socket
+a small fixed set of event loops (one per core by default) multiplexes all
+connections with a Selector. The loops only move bytes: once a full request
+header has been parsed (in place, see RequestParser) it is handed to a worker
+which runs the usual route logic in WebServer.respond, and the response is
+passed back to the loop that owns the connection for writing.
+
+The worker's ResponseWriter hands over one buffer at a time. If the client
+reads slower than the route produces, more than HIGH_WATER bytes pile up
+and the worker waits until the loop has written them down to LOW_WATER, so
+a large response never sits in memory as a whole. That wait is why route
+code never runs on a loop thread: only the loop can drain the queue.
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class NioServer {
+  static final int HIGH_WATER = 4 * ResponseWriter.BUFFER_SIZE;
+  static final int LOW_WATER = ResponseWriter.BUFFER_SIZE;
+
+  private final WebServer web;
+  private final Executor workers;
+  private final EventLoop[] loops;
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * @param web server whose respond handles the requests
+   * @param loopCount number of event loop threads
+   * @param workers executor the route logic runs on, so a slow route never stalls a loop.
+   *        It must never run a task on the calling thread
+   */
+  NioServer(WebServer web, int loopCount, Executor workers) {
+    this.web = web;
+    this.workers = workers;
+    this.loops = new EventLoop[loopCount];
+  }
+
+  /**
+   * Starts the event loops and accepts connections on the calling thread
+   * @param port to listen on
+   * @throws IOException if the listening channel cannot be opened
+   */
+  void run(int port) throws IOException {
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop();
+      Thread t = new Thread(loops[i], "nio-loop-" + i);
+      t.start();
+    }
+    Log.info("NIO engine running " + loops.length + " event loops");
+
+    // the acceptors block in accept(), the loops only see accepted channels
+    try (Acceptors acceptors = new Acceptors(port, Acceptors.COUNT)) {
+      acceptors.run((ch, acceptedAt) -> {
+        ch.configureBlocking(false);
+        // spread connections round robin over the loops
+        loops[Math.floorMod(next.getAndIncrement(), loops.length)].register(ch, acceptedAt);
+      });
+    }
+  }
+
+  /**
+   * Per connection state, only touched from the owning loop thread unless
+   * noted otherwise
+   */
+  static class Connection {
+    final SocketChannel channel;
+    SelectionKey key;
+    ByteBuffer in = ByteBuffer.allocate(WebServer.READ_BUFFER.get());
+    /** buffer currently being written */
+    ByteBuffer out;
+    /** buffers the worker produced that still have to be written, any thread */
+    final Queue<ByteBuffer> pending = new ConcurrentLinkedQueue<>();
+    /** bytes in pending and out, guarded by the connection */
+    int pendingBytes = 0;
+    /** set once the channel is closed, guarded by the connection */
+    boolean closed = false;
+    /** the worker has produced the whole response */
+    boolean responseDone = false;
+    /** file body being sent with transferTo, written after out */
+    StaticFiles.Reply file;
+    /** parses the request header in place in the in buffer */
+    final RequestParser request = new RequestParser();
+    boolean keepAlive = true;
+    int served = 0;
+    /** idle, header or write deadline, closes the connection through its loop */
+    Deadline deadline;
+    /** bytes written so far, read by the write deadline from the timer thread */
+    volatile long progress = 0;
+
+    // for the metrics: time spent parsing the current header, System.nanoTime()
+    // when the request was dispatched (0 if none is) and when its response was
+    // produced, and what that response was
+    long parseNanos = 0;
+    long started = 0;
+    long handled = 0;
+    String route;
+    int status;
+    long bytes;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  /**
+   * Stream a worker writes a response into. Every write is copied and queued
+   * for the loop, blocking while the client is too far behind.
+   */
+  private static class LoopOutput extends OutputStream {
+    private final Connection conn;
+    private final EventLoop loop;
+
+    LoopOutput(Connection conn, EventLoop loop) {
+      this.conn = conn;
+      this.loop = loop;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return;
+      }
+      // ResponseWriter reuses its buffer, so the bytes have to be copied
+      ByteBuffer copy = ByteBuffer.allocate(len);
+      copy.put(b, off, len).flip();
+      synchronized (conn) {
+        try {
+          while (conn.pendingBytes > HIGH_WATER && !conn.closed) {
+            conn.wait();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+        if (conn.closed) {
+          throw new IOException("Connection closed");
+        }
+        conn.pendingBytes += len;
+        conn.pending.add(copy);
+      }
+      loop.execute(() -> loop.resume(conn));
+    }
+  }
+
+  /**
+   * One selector and the thread running it
+   */
+  class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    EventLoop() throws IOException {
+      selector = Selector.open();
+    }
+
+    /**
+     * Hands a freshly accepted channel to this loop, may be called from any thread
+     * @param acceptedAt System.nanoTime() when it was accepted
+     */
+    void register(SocketChannel ch, long acceptedAt) {
+      execute(() -> {
+        Metrics.ACCEPT.record(System.nanoTime() - acceptedAt);
+        try {
+          Connection conn = new Connection(ch);
+          conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+          conn.deadline = new Deadline(() -> execute(() -> close(conn)));
+          conn.deadline.arm(Deadline.Kind.IDLE);
+        } catch (IOException e) {
+          Log.warn("Registering a connection failed", e);
+          Metrics.connectionClosed();
+          closeQuietly(ch);
+        }
+      });
+    }
+
+    /**
+     * Runs task on the loop thread, may be called from any thread
+     */
+    void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    public void run() {
+      while (true) {
+        try {
+          // deadlines are kept by the timer wheel, no need to wake up for them
+          selector.select();
+          Runnable task;
+          while ((task = tasks.poll()) != null) {
+            try {
+              task.run();
+            } catch (RuntimeException e) {
+              Log.error("Event loop task failed", e);
+            }
+          }
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Connection conn = (Connection) key.attachment();
+            try {
+              if (key.isValid() && key.isReadable()) {
+                read(conn);
+              }
+              if (key.isValid() && key.isWritable()) {
+                write(conn);
+              }
+            } catch (IOException e) {
+              // client went away, nothing more to do for it
+              close(conn);
+            } catch (RuntimeException e) {
+              // a bug, it costs this connection but not the others on the loop
+              Log.error("Connection failed", e);
+              close(conn);
+            }
+          }
+        } catch (IOException | RuntimeException e) {
+          Log.error("Event loop failed", e);
+        }
+      }
+    }
+
+    private void read(Connection conn) throws IOException {
+      conn.in = RequestParser.ensureRoom(conn.in);
+      int n = conn.channel.read(conn.in);
+      if (n < 0) {
+        close(conn);
+        return;
+      }
+      Metrics.read(n);
+      if (n > 0 && conn.deadline.armed() == Deadline.Kind.IDLE) {
+        // the request has started, the whole header has to arrive in time
+        conn.deadline.arm(Deadline.Kind.HEADER);
+      }
+      process(conn);
+    }
+
+    /**
+     * Dispatches the next request if its header is fully buffered
+     */
+    private void process(Connection conn) {
+      try {
+        long start = System.nanoTime();
+        boolean complete = conn.request.parse(conn.in);
+        conn.parseNanos += System.nanoTime() - start;
+        if (!complete) {
+          return;
+        }
+      } catch (RequestParser.BadRequest e) {
+        reject(conn, e.status, e.getMessage());
+        return;
+      }
+      Metrics.PARSE.record(conn.parseNanos);
+      conn.parseNanos = 0;
+      conn.started = System.nanoTime();
+      Metrics.requestStarted();
+
+      // header is complete, stop reading and let a worker build the response.
+      // The parser's views point into conn.in, which stays untouched until
+      // the response has been written. No deadline while the route works
+      conn.deadline.cancel();
+      conn.served++;
+      conn.keepAlive = WebServer.isKeepAlive(conn.request) && conn.served < WebServer.MAX_REQUESTS_PER_CONNECTION.get();
+      conn.key.interestOps(0);
+      boolean keepAlive = conn.keepAlive;
+      RequestParser request = conn.request;
+      try {
+        workers.execute(() -> {
+          try {
+            dispatch(conn, request, keepAlive);
+          } catch (Throwable e) {
+            Log.error("Worker failed", e);
+            execute(() -> close(conn));
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // shutting down
+        Metrics.requestAborted();
+        conn.started = 0;
+        reject(conn, "503 Service Unavailable", "Server is shutting down");
+      }
+    }
+
+    /**
+     * Answers with an error and closes the connection once it is written
+     * @param status status code and reason, e.g. "400 Bad Request"
+     */
+    private void reject(Connection conn, String status, String message) {
+      conn.keepAlive = false;
+      conn.deadline.cancel();
+      conn.key.interestOps(0);
+      byte[] error = WebServer.errorResponse(status, message);
+      synchronized (conn) {
+        conn.pendingBytes += error.length;
+      }
+      conn.pending.add(ByteBuffer.wrap(error));
+      conn.responseDone = true;
+      Metrics.response(ResponseWriter.statusCode(status), error.length);
+      resume(conn);
+    }
+
+    /**
+     * Builds the response to a request, on a worker
+     */
+    private void dispatch(Connection conn, RequestParser request, boolean keepAlive) {
+      File target = web.fileTarget(request);
+      if (target != null) {
+        try {
+          StaticFiles.Reply reply = StaticFiles.prepare(target, request, keepAlive);
+          long handled = System.nanoTime();
+          execute(() -> {
+            conn.file = reply;
+            conn.responseDone = true;
+            produced(conn, handled, "static", reply.status, reply.length());
+            if (!conn.key.isValid()) {
+              closeQuietly(reply);
+              conn.file = null;
+              return;
+            }
+            resume(conn);
+          });
+          return;
+        } catch (IOException e) {
+          // fall back to respond which reports the problem
+        }
+      }
+      ResponseWriter response = new ResponseWriter(new LoopOutput(conn, this), request, keepAlive);
+      // a route waiting on something else returns right away and the rest
+      // runs on whichever thread completes it, no worker is held meanwhile
+      web.respond(request, response).whenComplete((done, error) -> complete(conn, response, error));
+    }
+
+    /**
+     * Finishes a response once the route has written it, on the thread that
+     * completed it
+     */
+    private void complete(Connection conn, ResponseWriter response, Throwable error) {
+      try {
+        if (error == null) {
+          response.finish();
+        }
+      } catch (IOException | RuntimeException e) {
+        error = e;
+      } finally {
+        response.abandon();
+      }
+      if (error != null) {
+        // client is gone or the route failed half way, either way the
+        // response can't be completed
+        execute(() -> close(conn));
+        return;
+      }
+      boolean reuse = response.keepAlive();
+      long handled = System.nanoTime();
+      execute(() -> {
+        conn.keepAlive = reuse;
+        conn.responseDone = true;
+        produced(conn, handled, response.route(), response.statusCode(), response.bytesSent());
+        resume(conn);
+      });
+    }
+
+    /**
+     * Notes what the worker produced, counted once it has been written
+     */
+    private void produced(Connection conn, long handled, String route, int status, long bytes) {
+      if (conn.started != 0) {
+        Metrics.HANDLE.record(handled - conn.started);
+      }
+      conn.handled = handled;
+      conn.route = route;
+      conn.status = status;
+      conn.bytes = bytes;
+    }
+
+    /**
+     * Continues writing after the worker produced more of the response
+     */
+    void resume(Connection conn) {
+      if (!conn.key.isValid()) {
+        return;
+      }
+      try {
+        write(conn);
+      } catch (IOException e) {
+        close(conn);
+      }
+    }
+
+    private void write(Connection conn) throws IOException {
+      while (true) {
+        if (conn.out != null) {
+          conn.progress += conn.channel.write(conn.out);
+          if (conn.out.hasRemaining()) {
+            // socket buffer is full, wait until the client drains it
+            waitWritable(conn);
+            return;
+          }
+          written(conn, conn.out.capacity());
+          conn.out = null;
+        }
+        conn.out = conn.pending.poll();
+        if (conn.out == null) {
+          break;
+        }
+      }
+      if (conn.file != null) {
+        long before = conn.file.written();
+        boolean sent = conn.file.writeTo(conn.channel);
+        conn.progress += conn.file.written() - before;
+        if (!sent) {
+          waitWritable(conn);
+          return;
+        }
+        conn.file.close();
+        conn.file = null;
+      }
+      if (!conn.responseDone) {
+        // everything so far is out, wait for the worker to produce more
+        conn.deadline.cancel();
+        conn.key.interestOps(0);
+        return;
+      }
+      if (conn.started != 0) {
+        long done = System.nanoTime();
+        Metrics.WRITE.record(done - conn.handled);
+        Metrics.requestDone(conn.route, conn.status, conn.bytes, done - conn.started);
+        conn.started = 0;
+      }
+      if (conn.keepAlive) {
+        // keep whatever followed the header, it is the next request
+        conn.request.consume(conn.in);
+        conn.responseDone = false;
+        conn.deadline.arm(conn.in.position() > 0 ? Deadline.Kind.HEADER : Deadline.Kind.IDLE);
+        conn.key.interestOps(SelectionKey.OP_READ);
+        process(conn);
+      } else {
+        close(conn);
+      }
+    }
+
+    /**
+     * Accounts for bytes that went out and wakes the worker if it was waiting
+     */
+    private void written(Connection conn, int bytes) {
+      synchronized (conn) {
+        conn.pendingBytes -= bytes;
+        if (conn.pendingBytes <= LOW_WATER) {
+          conn.notifyAll();
+        }
+      }
+    }
+
+    /**
+     * Waits for the client to drain the socket buffer, under the write
+     * deadline which keeps being pushed back as long as bytes go out
+     */
+    private void waitWritable(Connection conn) {
+      if (conn.deadline.armed() != Deadline.Kind.WRITE) {
+        conn.deadline.arm(Deadline.Kind.WRITE, () -> conn.progress);
+      }
+      conn.key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void close(Connection conn) {
+      synchronized (conn) {
+        if (conn.closed) {
+          return;
+        }
+        // a worker blocked on a full queue gives up
+        conn.closed = true;
+        conn.notifyAll();
+      }
+      conn.key.cancel();
+      conn.deadline.cancel();
+      closeQuietly(conn.channel);
+      conn.pending.clear();
+      if (conn.started != 0) {
+        Metrics.requestAborted();
+        conn.started = 0;
+      }
+      Metrics.connectionClosed();
+      if (conn.file != null) {
+        closeQuietly(conn.file);
+        conn.file = null;
+      }
+    }
+  }
+
+  private static void closeQuietly(Closeable ch) {
+    try {
+      ch.close();
+    } catch (IOException e) {
+      // already closed
+    }
+  }
+}
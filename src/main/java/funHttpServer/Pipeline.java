@@ -0,0 +1,314 @@
+/*
+HTTP/1.1 pipelining for the thread per connection engines. A client may send
+several requests without waiting for the answers, so by the time one request
+header is parsed the next ones can already be in the connection buffer.
+Those are parsed right away and their routes run in parallel with the first
+request on the connection executor, each into a response held in memory.
+The connection thread then writes the responses strictly in request order
+behind the first one.
+
+A response is only held up to funHttpServer.pipelineBuffer bytes (default
+64 KB). A route producing more waits until its turn comes, the bytes held
+go out first and the rest is streamed straight to the client, so a large
+response (e.g. /repeat with a big num) never sits in memory whole and a
+connection holds at most pipelineDepth times that much.
+
+A route never runs on the connection thread before its turn: an executor
+that runs a task on the submitting thread when it is full (the POOL
+executor's CallerRunsPolicy) is handed a task that does nothing there, since
+a route writing past pipelineBuffer would wait for a stream only that thread
+can attach. A task nobody has started when its turn comes is run by the
+connection thread then, after the client stream is attached, so a busy,
+bounded or rejecting executor only costs parallelism.
+
+Each gathered request is parsed in place in the connection buffer and only
+its own header bytes are copied out, so the views stay valid while the
+buffer is reused.
+
+Files are not prepared ahead, they are opened and streamed when their turn
+comes. At most funHttpServer.pipelineDepth requests (default 16, 1 turns
+pipelining off) are taken from the buffer at once, the rest waits for the
+next round.
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class Pipeline {
+  static final Config.Setting<Integer> MAX_DEPTH = Config.intSetting("pipelineDepth", 16);
+  static final Config.Setting<Integer> MAX_HELD = Config.intSetting("pipelineBuffer", 64 * 1024);
+
+  private final WebServer web;
+  private final List<Ahead> ahead = new ArrayList<>();
+  // bytes the gathered requests take up behind the first one
+  private int consumed = 0;
+  // index of the next response to write
+  private int next = 0;
+
+  /**
+   * A request found behind the one being served
+   */
+  private class Ahead implements Runnable {
+    final RequestParser request;
+    final boolean keepAlive;
+    final File file;
+    final long started = System.nanoTime();
+    final AtomicBoolean claimed = new AtomicBoolean();
+    final CompletableFuture<Void> done = new CompletableFuture<>();
+    final HeldOutput bytes = new HeldOutput(MAX_HELD.get());
+    ResponseWriter response;
+    long handled;
+
+    Ahead(RequestParser request, boolean keepAlive) {
+      this.request = request;
+      this.keepAlive = keepAlive;
+      this.file = web.fileTarget(request);
+    }
+
+    /**
+     * Runs the route into memory, once, on whichever thread gets here first
+     */
+    public void run() {
+      if (!claimed.compareAndSet(false, true)) {
+        return;
+      }
+      response = new ResponseWriter(bytes, request, keepAlive);
+      try {
+        WebServer.await(web.respond(request, response));
+        handled = System.nanoTime();
+        response.finish();
+        done.complete(null);
+      } catch (Throwable e) {
+        done.completeExceptionally(e);
+      } finally {
+        response.abandon();
+      }
+    }
+  }
+
+  /**
+   * Holds a response until its turn, up to a limit. Past that the route
+   * waits for the client's stream, which is handed over when the turn comes
+   */
+  private static class HeldOutput extends OutputStream {
+    private final int limit;
+    private final ByteArrayOutputStream held = new ByteArrayOutputStream();
+    // guarded by this
+    private OutputStream out;
+    private boolean abandoned = false;
+
+    HeldOutput(int limit) {
+      this.limit = limit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      OutputStream client;
+      synchronized (this) {
+        try {
+          while (out == null && !abandoned && held.size() + len > limit) {
+            wait();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+        if (abandoned) {
+          throw new IOException("Connection closed");
+        }
+        if (out == null) {
+          held.write(b, off, len);
+          return;
+        }
+        client = out;
+      }
+      // outside the lock, a slow client must not hold up abandon
+      client.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      OutputStream client;
+      synchronized (this) {
+        client = out;
+      }
+      if (client != null) {
+        client.flush();
+      }
+    }
+
+    /**
+     * The response's turn: writes what is held and lets the route continue
+     * straight to the client
+     */
+    synchronized void attach(OutputStream client) throws IOException {
+      held.writeTo(client);
+      held.reset();
+      out = client;
+      notifyAll();
+    }
+
+    /**
+     * The response will never be written, a waiting route fails
+     */
+    synchronized void abandon() {
+      abandoned = true;
+      held.reset();
+      notifyAll();
+    }
+  }
+
+  private Pipeline(WebServer web) {
+    this.web = web;
+  }
+
+  /**
+   * Parses the complete requests buffered behind the current one and starts
+   * their routes
+   * @param web server whose respond handles the requests
+   * @param buf connection buffer, in write mode
+   * @param current parsed request at the start of the buffer
+   * @param served requests served on the connection so far, current included
+   * @param executor runs the routes, null to run them one by one when
+   *        their turn comes
+   * @return the gathered requests, possibly none
+   */
+  static Pipeline gather(WebServer web, ByteBuffer buf, RequestParser current, int served, Executor executor) {
+    Pipeline pipeline = new Pipeline(web);
+    int offset = current.headerLength();
+    int limit = buf.position();
+    int depth = MAX_DEPTH.get();
+    while (pipeline.ahead.size() < depth - 1 && offset < limit) {
+      // the rest of the buffer, parsed where it is
+      ByteBuffer rest = ByteBuffer.wrap(buf.array(), buf.arrayOffset() + offset, limit - offset).slice();
+      rest.position(rest.limit());
+      RequestParser request = new RequestParser();
+      long start = System.nanoTime();
+      try {
+        if (!request.parse(rest)) {
+          // incomplete, the connection reads the rest
+          break;
+        }
+      } catch (RequestParser.BadRequest e) {
+        // answered in turn by the connection loop
+        break;
+      }
+      // the views of each request must stay valid until it is answered
+      request.copyHeader();
+      Metrics.PARSE.record(System.nanoTime() - start);
+      Metrics.requestStarted();
+      served++;
+      boolean keepAlive = WebServer.isKeepAlive(request) && served < WebServer.MAX_REQUESTS_PER_CONNECTION.get();
+      pipeline.ahead.add(pipeline.new Ahead(request, keepAlive));
+      offset += request.headerLength();
+      pipeline.consumed += request.headerLength();
+      if (!keepAlive) {
+        break;
+      }
+    }
+    if (executor != null) {
+      Thread connection = Thread.currentThread();
+      for (Ahead a : pipeline.ahead) {
+        if (a.file == null) {
+          try {
+            executor.execute(() -> {
+              // run here by a full executor, writeTo runs it in turn instead
+              if (Thread.currentThread() != connection) {
+                a.run();
+              }
+            });
+          } catch (RejectedExecutionException e) {
+            // run in turn instead
+          }
+        }
+      }
+    }
+    return pipeline;
+  }
+
+  /**
+   * @return number of requests gathered
+   */
+  int size() {
+    return ahead.size();
+  }
+
+  /**
+   * Drops the gathered requests from the connection buffer, after the
+   * current request has been consumed
+   * @param buf connection buffer, in write mode
+   */
+  void consume(ByteBuffer buf) {
+    buf.flip();
+    buf.position(consumed);
+    buf.compact();
+  }
+
+  /**
+   * Writes the responses in request order
+   * @param sock client socket, files are sent through its channel
+   * @param out stream to the client
+   * @param deadline the connection's deadline, files are sent under it
+   * @return whether the connection may stay open after the last one
+   * @throws IOException if writing fails or a route failed after part of
+   *         its response was produced
+   */
+  boolean writeTo(Socket sock, OutputStream out, Deadline deadline) throws IOException {
+    while (next < ahead.size()) {
+      Ahead a = ahead.get(next);
+      boolean keepAlive = a.keepAlive;
+      if (a.file != null) {
+        try (StaticFiles.Reply reply = StaticFiles.prepare(a.file, a.request, keepAlive)) {
+          long handled = System.nanoTime();
+          Metrics.HANDLE.record(handled - a.started);
+          WebServer.sendFile(reply, sock, deadline);
+          long done = System.nanoTime();
+          Metrics.WRITE.record(done - handled);
+          Metrics.requestDone("static", reply.status, reply.length(), done - a.started);
+        }
+      } else {
+        // before run, a route run here right away writes to the client
+        a.bytes.attach(out);
+        a.run();
+        WebServer.await(a.done);
+        Metrics.HANDLE.record(a.handled - a.started);
+        out.flush();
+        long done = System.nanoTime();
+        Metrics.WRITE.record(done - a.handled);
+        Metrics.requestDone(a.response.route(), a.response.statusCode(), a.response.bytesSent(), done - a.started);
+        keepAlive = a.response.keepAlive();
+      }
+      next++;
+      if (!keepAlive) {
+        abort();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gives up on the responses not written yet, routes still running finish
+   * into memory and are dropped
+   */
+  void abort() {
+    for (; next < ahead.size(); next++) {
+      ahead.get(next).bytes.abandon();
+      Metrics.requestAborted();
+    }
+  }
+}
@@ -0,0 +1,425 @@
+/*
+Byte level HTTP/1.x request header parser. It works directly on the
+connection's ByteBuffer (data from index 0 up to position, as left by a
+channel or stream read) and can be fed as bytes arrive: parse() continues
+where it stopped last time and returns true once the blank line ending the
+header has been seen.
+
+Nothing is decoded into Strings while parsing. Method, target, path, query,
+version and every header name and value are exposed as CharSequence views
+on the buffer. The views are allocated once per parser and reused for every
+request on the connection, so they are only valid until consume() is called.
+
+Limits: the request line may be at most MAX_REQUEST_LINE bytes (414), the
+whole header at most WebServer.MAX_HEADER_BYTES bytes and MAX_HEADERS
+fields (431). Anything malformed is a 400.
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+class RequestParser {
+  static final int MAX_REQUEST_LINE = 8 * 1024;
+  static final int MAX_HEADERS = 64;
+
+  /**
+   * The request can't be parsed, status says what to answer
+   */
+  static class BadRequest extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    final String status;
+
+    BadRequest(String status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  // parser states
+  private static final int START = 0;
+  private static final int METHOD = 1;
+  private static final int TARGET = 2;
+  private static final int VERSION = 3;
+  private static final int REQUEST_LINE_LF = 4;
+  private static final int HEADER_START = 5;
+  private static final int HEADER_NAME = 6;
+  private static final int VALUE_START = 7;
+  private static final int VALUE = 8;
+  private static final int HEADER_LF = 9;
+  private static final int FINAL_LF = 10;
+  private static final int DONE = 11;
+
+  private ByteBuffer buf;
+  private int state = START;
+  private int pos = 0;
+  private int mark = 0;
+  private int queryMark = -1;
+  private int valueEnd = 0;
+
+  private final Slice method = new Slice();
+  private final Slice target = new Slice();
+  private final Slice path = new Slice();
+  private final Slice query = new Slice();
+  private final Slice version = new Slice();
+  private int headerCount = 0;
+  private final Slice[] names = new Slice[MAX_HEADERS];
+  private final Slice[] values = new Slice[MAX_HEADERS];
+
+  RequestParser() {
+    for (int i = 0; i < MAX_HEADERS; i++) {
+      names[i] = new Slice();
+      values[i] = new Slice();
+    }
+  }
+
+  /**
+   * View on a range of the buffer, chars are the bytes read as ISO-8859-1
+   */
+  class Slice implements CharSequence {
+    int start;
+    int end;
+
+    void set(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    public int length() {
+      return end - start;
+    }
+
+    public char charAt(int index) {
+      return (char) (buf.get(start + index) & 0xff);
+    }
+
+    public CharSequence subSequence(int from, int to) {
+      return toString().substring(from, to);
+    }
+
+    /**
+     * @return true if the bytes equal s ignoring ASCII case, without allocating
+     */
+    boolean equalsIgnoreCase(String s) {
+      if (s.length() != length()) {
+        return false;
+      }
+      for (int i = 0; i < s.length(); i++) {
+        if (lower(charAt(i)) != lower(s.charAt(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @return true if s appears as one of the comma separated tokens, ignoring case
+     */
+    boolean containsToken(String s) {
+      int i = 0;
+      int n = length();
+      while (i < n) {
+        while (i < n && (charAt(i) == ' ' || charAt(i) == ',' || charAt(i) == '\t')) {
+          i++;
+        }
+        int tokenStart = i;
+        while (i < n && charAt(i) != ',') {
+          i++;
+        }
+        int tokenEnd = i;
+        while (tokenEnd > tokenStart && (charAt(tokenEnd - 1) == ' ' || charAt(tokenEnd - 1) == '\t')) {
+          tokenEnd--;
+        }
+        if (tokenEnd - tokenStart == s.length()) {
+          boolean match = true;
+          for (int j = 0; j < s.length() && match; j++) {
+            match = lower(charAt(tokenStart + j)) == lower(s.charAt(j));
+          }
+          if (match) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    public String toString() {
+      char[] chars = new char[length()];
+      for (int i = 0; i < chars.length; i++) {
+        chars[i] = charAt(i);
+      }
+      return new String(chars);
+    }
+  }
+
+  private static char lower(char c) {
+    return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+  }
+
+  /**
+   * Continues parsing with the bytes that arrived since the last call
+   * @param buf buffer holding the request from index 0 up to its position
+   * @return true once the whole header has been parsed
+   * @throws BadRequest if the request is malformed or exceeds a limit
+   */
+  @SuppressWarnings("fallthrough")
+  boolean parse(ByteBuffer buf) throws BadRequest {
+    this.buf = buf;
+    int limit = buf.position();
+    while (pos < limit && state != DONE) {
+      byte b = buf.get(pos);
+      switch (state) {
+        case START:
+          // empty lines before a request are allowed and skipped
+          if (b == '\r' || b == '\n') {
+            mark = pos + 1;
+            break;
+          }
+          state = METHOD;
+          // fall through
+        case METHOD:
+          if (b == ' ') {
+            if (pos == mark) {
+              throw new BadRequest("400 Bad Request", "empty method");
+            }
+            method.set(mark, pos);
+            mark = pos + 1;
+            queryMark = -1;
+            state = TARGET;
+          } else if (b < 'A' || b > 'Z') {
+            throw new BadRequest("400 Bad Request", "bad method");
+          }
+          break;
+        case TARGET:
+          if (b == ' ') {
+            if (pos == mark) {
+              throw new BadRequest("400 Bad Request", "empty target");
+            }
+            target.set(mark, pos);
+            if (queryMark < 0) {
+              path.set(mark, pos);
+              query.set(pos, pos);
+            } else {
+              path.set(mark, queryMark);
+              query.set(queryMark + 1, pos);
+            }
+            mark = pos + 1;
+            state = VERSION;
+          } else if (b == '?' && queryMark < 0) {
+            queryMark = pos;
+          } else if ((b >= 0 && b <= ' ') || b == 0x7f) {
+            throw new BadRequest("400 Bad Request", "bad character in target");
+          }
+          break;
+        case VERSION:
+          if (b == '\r' || b == '\n') {
+            if (pos > MAX_REQUEST_LINE) {
+              // arrived in one piece, the check below never saw it unfinished
+              throw new BadRequest("414 URI Too Long", "request line too long");
+            }
+            version.set(mark, pos);
+            checkVersion();
+            state = b == '\r' ? REQUEST_LINE_LF : HEADER_START;
+          }
+          break;
+        case REQUEST_LINE_LF:
+        case HEADER_LF:
+          if (b != '\n') {
+            throw new BadRequest("400 Bad Request", "CR without LF");
+          }
+          state = HEADER_START;
+          break;
+        case HEADER_START:
+          if (b == '\r') {
+            state = FINAL_LF;
+          } else if (b == '\n') {
+            state = DONE;
+          } else if (b == ' ' || b == '\t') {
+            throw new BadRequest("400 Bad Request", "folded header lines are not supported");
+          } else {
+            if (headerCount == MAX_HEADERS) {
+              throw new BadRequest("431 Request Header Fields Too Large", "too many headers");
+            }
+            mark = pos;
+            state = HEADER_NAME;
+          }
+          break;
+        case HEADER_NAME:
+          if (b == ':') {
+            if (pos == mark) {
+              throw new BadRequest("400 Bad Request", "empty header name");
+            }
+            names[headerCount].set(mark, pos);
+            state = VALUE_START;
+          } else if (b <= ' ' || b == 0x7f) {
+            throw new BadRequest("400 Bad Request", "bad character in header name");
+          }
+          break;
+        case VALUE_START:
+          if (b == ' ' || b == '\t') {
+            break;
+          }
+          mark = pos;
+          valueEnd = pos;
+          state = VALUE;
+          // fall through
+        case VALUE:
+          if (b == '\r' || b == '\n') {
+            values[headerCount].set(mark, valueEnd);
+            headerCount++;
+            state = b == '\r' ? HEADER_LF : HEADER_START;
+          } else if (b != ' ' && b != '\t') {
+            valueEnd = pos + 1;
+          }
+          break;
+        case FINAL_LF:
+          if (b != '\n') {
+            throw new BadRequest("400 Bad Request", "CR without LF");
+          }
+          state = DONE;
+          break;
+      }
+      pos++;
+    }
+
+    if (state == DONE) {
+      return true;
+    }
+    if (state <= VERSION && pos > MAX_REQUEST_LINE) {
+      throw new BadRequest("414 URI Too Long", "request line too long");
+    }
+    if (pos >= WebServer.MAX_HEADER_BYTES) {
+      throw new BadRequest("431 Request Header Fields Too Large", "header too large");
+    }
+    return false;
+  }
+
+  private void checkVersion() throws BadRequest {
+    // HTTP/d.d
+    if (version.length() != 8 || version.charAt(0) != 'H' || version.charAt(1) != 'T'
+        || version.charAt(2) != 'T' || version.charAt(3) != 'P' || version.charAt(4) != '/'
+        || !Character.isDigit(version.charAt(5)) || version.charAt(6) != '.'
+        || !Character.isDigit(version.charAt(7))) {
+      throw new BadRequest("400 Bad Request", "bad version");
+    }
+  }
+
+  /**
+   * @return true once the request line has been parsed
+   */
+  boolean hasRequestLine() {
+    return state > VERSION;
+  }
+
+  /**
+   * @return number of bytes the parsed header takes up at the start of the buffer
+   */
+  int headerLength() {
+    return pos;
+  }
+
+  /**
+   * Drops the parsed header from the buffer, keeping any bytes that follow it
+   * (the start of the next request), and resets the parser for that request
+   * @param buf the buffer passed to parse, still in write mode
+   */
+  void consume(ByteBuffer buf) {
+    buf.flip();
+    buf.position(pos);
+    buf.compact();
+    reset();
+  }
+
+  /**
+   * Moves the parsed header into a buffer of its own, so the views stay
+   * valid while the buffer it was parsed from is reused
+   */
+  void copyHeader() {
+    ByteBuffer header = buf.duplicate();
+    header.position(0);
+    header.limit(pos);
+    buf = ByteBuffer.allocate(pos).put(header);
+  }
+
+  /**
+   * Forgets the current request
+   */
+  void reset() {
+    state = START;
+    pos = 0;
+    mark = 0;
+    queryMark = -1;
+    headerCount = 0;
+  }
+
+  /**
+   * Makes sure there is room to read more bytes into the buffer
+   * @param buf current buffer, in write mode
+   * @return buf or a larger copy of it
+   */
+  static ByteBuffer ensureRoom(ByteBuffer buf) {
+    if (buf.hasRemaining() || buf.capacity() >= WebServer.MAX_HEADER_BYTES) {
+      return buf;
+    }
+    ByteBuffer bigger = ByteBuffer.allocate(Math.min(buf.capacity() * 2, WebServer.MAX_HEADER_BYTES));
+    buf.flip();
+    bigger.put(buf);
+    return bigger;
+  }
+
+  Slice method() {
+    return method;
+  }
+
+  /**
+   * @return the request target as sent, e.g. "/multiply?num1=3&num2=4"
+   */
+  Slice target() {
+    return target;
+  }
+
+  /**
+   * @return the target up to the "?"
+   */
+  Slice path() {
+    return path;
+  }
+
+  /**
+   * @return the target after the "?", empty if there is none
+   */
+  Slice query() {
+    return query;
+  }
+
+  Slice version() {
+    return version;
+  }
+
+  int headerCount() {
+    return headerCount;
+  }
+
+  Slice headerName(int i) {
+    return names[i];
+  }
+
+  Slice headerValue(int i) {
+    return values[i];
+  }
+
+  /**
+   * @param name header name, case insensitive
+   * @return the value of the first header with that name or null
+   */
+  Slice header(String name) {
+    for (int i = 0; i < headerCount; i++) {
+      if (names[i].equalsIgnoreCase(name)) {
+        return values[i];
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,562 @@
+/*
+Writes one HTTP response to a stream. Handlers set the status and headers
+and then write the body, which is encoded straight into a pooled buffer
+instead of being collected in a StringBuilder first.
+
+Framing is picked as late as possible:
+- if the whole body fits into the buffer (or the handler set a length up
+  front) the response is sent with Content-Length
+- otherwise the first full buffer goes out with "Transfer-Encoding: chunked"
+  and every following buffer is one chunk, so memory use stays at one
+  buffer no matter how large the response gets
+- HTTP/1.0 clients don't understand chunks, there the body just runs until
+  the connection is closed
+
+The status line and headers are written into room kept free at the start of
+the buffer, right in front of the body, so a small response leaves in a
+single write.
+
+If the client accepts gzip or deflate and the content type is text-like the
+body is compressed on the way out (see Compression): every buffer the
+handler fills is deflated into a second pooled buffer, which is framed and
+sent the same way. A body that is complete in the first buffer and smaller
+than funHttpServer.compressMinBytes is sent as it is.
+
+A handler waiting for something else (e.g. an upstream request) calls
+startAsync() and returns; whoever completes the returned future has written
+the rest of the response by then, and only then is it finished.
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+class ResponseWriter {
+  /** size of the pooled response buffers, read once at startup */
+  static final int BUFFER_SIZE = Math.max(4 * 1024, Integer.getInteger("funHttpServer.writeBuffer", 16 * 1024));
+
+  /** free space in front of the body for the status line, headers and chunk size */
+  private static final int HEADROOM = 1024;
+
+  /** free space after the body for "\r\n" ending a chunk and "0\r\n\r\n" */
+  private static final int TAIL = 7;
+
+  /** buffers kept for reuse */
+  private static final int MAX_POOLED = 256;
+
+  private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+  private static final ConcurrentLinkedQueue<byte[]> _pool = new ConcurrentLinkedQueue<>();
+  private static final AtomicInteger _pooled = new AtomicInteger();
+
+  private final OutputStream out;
+  private final boolean chunkedAllowed;
+  private boolean keepAlive;
+
+  private String status = "200 OK";
+  private String route = "unmatched";
+  private long bytesSent = 0;
+  private final StringBuilder headers = new StringBuilder(128);
+  private String contentType = null;
+  private boolean contentEncoding = false;
+  private long contentLength = -1;
+
+  // encoding the client accepts, null if none
+  private final String acceptedEncoding;
+  // set while the body is being compressed
+  private String encoding;
+  private Deflater deflater;
+  private CRC32 crc;
+  // compressed bytes waiting to be sent are in zbuf[HEADROOM, zcount)
+  private byte[] zbuf;
+  private int zcount;
+  private long rawLength;
+  private long encodedLength;
+
+  private byte[] buf;
+  // body bytes waiting to be sent are in buf[HEADROOM, count)
+  private int count = HEADROOM;
+  private boolean committed = false;
+  private boolean chunked = false;
+  private boolean finished = false;
+  private CompletableFuture<Void> async;
+
+  /**
+   * @param out stream to the client
+   * @param request the request being answered, null if it could not be parsed
+   * @param keepAlive whether the connection should stay open afterwards
+   */
+  ResponseWriter(OutputStream out, RequestParser request, boolean keepAlive) {
+    this.out = out;
+    this.keepAlive = keepAlive;
+    this.chunkedAllowed = request == null || !request.hasRequestLine()
+        || !request.version().equalsIgnoreCase("HTTP/1.0");
+    this.acceptedEncoding = request == null || !request.hasRequestLine()
+        ? null : Compression.negotiate(request.header("Accept-Encoding"));
+    this.buf = acquire();
+  }
+
+  private static byte[] acquire() {
+    byte[] b = _pool.poll();
+    if (b == null) {
+      return new byte[BUFFER_SIZE];
+    }
+    _pooled.decrementAndGet();
+    return b;
+  }
+
+  private static void release(byte[] b) {
+    if (_pooled.incrementAndGet() <= MAX_POOLED) {
+      _pool.add(b);
+    } else {
+      _pooled.decrementAndGet();
+    }
+  }
+
+  /**
+   * @param status status code and reason, e.g. "404 Not Found"
+   */
+  ResponseWriter status(String status) {
+    checkNotCommitted();
+    this.status = status;
+    return this;
+  }
+
+  ResponseWriter header(String name, String value) {
+    checkNotCommitted();
+    if (name.equalsIgnoreCase("Content-Type")) {
+      contentType = value;
+    } else if (name.equalsIgnoreCase("Content-Encoding")) {
+      // already encoded by the handler
+      contentEncoding = true;
+    }
+    headers.append(name).append(": ").append(value).append("\r\n");
+    return this;
+  }
+
+  /**
+   * @return the status code, e.g. 404
+   */
+  int statusCode() {
+    return statusCode(status);
+  }
+
+  /**
+   * @param status status code and reason, e.g. "404 Not Found"
+   * @return the code, e.g. 404
+   */
+  static int statusCode(String status) {
+    int code = 0;
+    for (int i = 0; i < status.length() && Character.isDigit(status.charAt(i)); i++) {
+      code = code * 10 + (status.charAt(i) - '0');
+    }
+    return code;
+  }
+
+  /**
+   * Names the route answering, for the metrics
+   */
+  void route(String route) {
+    this.route = route;
+  }
+
+  String route() {
+    return route;
+  }
+
+  /**
+   * @return bytes handed to the stream so far, header and framing included
+   */
+  long bytesSent() {
+    return bytesSent;
+  }
+
+  /**
+   * Announces the body length up front, the body is then never chunked
+   */
+  ResponseWriter contentLength(long length) {
+    checkNotCommitted();
+    this.contentLength = length;
+    return this;
+  }
+
+  private void checkNotCommitted() {
+    if (committed) {
+      throw new IllegalStateException("Response header already sent");
+    }
+  }
+
+  /**
+   * @return true once the status line and headers have been sent
+   */
+  boolean committed() {
+    return committed;
+  }
+
+  /**
+   * @return whether the connection may be reused, false if the body had to
+   *         be delimited by closing it
+   */
+  boolean keepAlive() {
+    return keepAlive;
+  }
+
+  /**
+   * Closes the connection after this response
+   */
+  void closeConnection() {
+    checkNotCommitted();
+    keepAlive = false;
+  }
+
+  /**
+   * Marks the response as completed later, the handler may return before
+   * writing it
+   * @return to be completed once the response is written, or exceptionally
+   *         if it can't be
+   */
+  CompletableFuture<Void> startAsync() {
+    if (async == null) {
+      async = new CompletableFuture<>();
+    }
+    return async;
+  }
+
+  /**
+   * @return the future from startAsync, null if the handler answered right away
+   */
+  CompletableFuture<Void> async() {
+    return async;
+  }
+
+  /**
+   * Forgets status, headers and body written so far, only possible before
+   * anything was sent
+   */
+  void reset() {
+    checkNotCommitted();
+    status = "200 OK";
+    headers.setLength(0);
+    contentType = null;
+    contentEncoding = false;
+    contentLength = -1;
+    count = HEADROOM;
+    endCompression();
+  }
+
+  /**
+   * Appends text to the body, encoded as UTF-8
+   */
+  ResponseWriter write(String s) throws IOException {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        if (count == BUFFER_SIZE - TAIL) {
+          send(false, false);
+        }
+        buf[count++] = (byte) c;
+      } else {
+        writeNonAscii(s, i);
+        if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+          i++;
+        }
+      }
+    }
+    return this;
+  }
+
+  private void writeNonAscii(String s, int i) throws IOException {
+    if (count > BUFFER_SIZE - TAIL - 4) {
+      send(false, false);
+    }
+    char c = s.charAt(i);
+    if (c < 0x800) {
+      buf[count++] = (byte) (0xc0 | (c >> 6));
+      buf[count++] = (byte) (0x80 | (c & 0x3f));
+    } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+      int cp = Character.toCodePoint(c, s.charAt(i + 1));
+      buf[count++] = (byte) (0xf0 | (cp >> 18));
+      buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+      buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+      buf[count++] = (byte) (0x80 | (cp & 0x3f));
+    } else if (Character.isSurrogate(c)) {
+      // unpaired surrogate
+      buf[count++] = (byte) '?';
+    } else {
+      buf[count++] = (byte) (0xe0 | (c >> 12));
+      buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+      buf[count++] = (byte) (0x80 | (c & 0x3f));
+    }
+  }
+
+  /**
+   * Appends raw bytes to the body
+   */
+  ResponseWriter write(byte[] data, int off, int len) throws IOException {
+    while (len > 0) {
+      int room = BUFFER_SIZE - TAIL - count;
+      if (room == 0) {
+        send(false, false);
+        continue;
+      }
+      int n = Math.min(room, len);
+      System.arraycopy(data, off, buf, count, n);
+      count += n;
+      off += n;
+      len -= n;
+    }
+    return this;
+  }
+
+  ResponseWriter write(byte[] data) throws IOException {
+    return write(data, 0, data.length);
+  }
+
+  /**
+   * Sends what has been written so far. The header is committed, so without
+   * a known length the rest of the body will be chunked.
+   */
+  void flush() throws IOException {
+    send(false, true);
+    out.flush();
+  }
+
+  /**
+   * Completes the response and gives the buffer back to the pool
+   */
+  void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    try {
+      send(true, false);
+      out.flush();
+    } finally {
+      finished = true;
+      release(buf);
+      buf = null;
+      endCompression();
+    }
+  }
+
+  /**
+   * Gives the buffer back without completing the response, for when the
+   * connection is going to be dropped anyway
+   */
+  void abandon() {
+    if (!finished) {
+      finished = true;
+      release(buf);
+      buf = null;
+      endCompression();
+    }
+  }
+
+  /**
+   * Hands the body bytes in the buffer on, compressed or not
+   * @param last true if the body is complete
+   * @param sync true if everything written so far must reach the client now
+   */
+  private void send(boolean last, boolean sync) throws IOException {
+    if (!committed && deflater == null && shouldCompress(last)) {
+      startCompression();
+    }
+    if (deflater == null) {
+      emit(buf, count, last);
+    } else {
+      deflate(last, sync);
+    }
+    count = HEADROOM;
+  }
+
+  /**
+   * Decided once, before the header is sent
+   */
+  private boolean shouldCompress(boolean last) {
+    if (acceptedEncoding == null || contentEncoding || contentLength >= 0 || !compressible()) {
+      return false;
+    }
+    int code = statusCode();
+    if (code < 200 || code == 204 || code == 206 || code == 304) {
+      return false;
+    }
+    // a small body costs more in CPU than it saves on the wire
+    return !last || count - HEADROOM >= Compression.MIN_BYTES.get();
+  }
+
+  private boolean compressible() {
+    return Compression.ENABLED.get()
+        && Compression.compressible(contentType != null ? contentType : "text/html; charset=utf-8");
+  }
+
+  private void startCompression() {
+    encoding = acceptedEncoding;
+    deflater = Compression.acquire(encoding);
+    zbuf = acquire();
+    zcount = HEADROOM;
+    if (encoding.equals(Compression.GZIP)) {
+      crc = new CRC32();
+      System.arraycopy(Compression.GZIP_HEADER, 0, zbuf, zcount, Compression.GZIP_HEADER.length);
+      zcount += Compression.GZIP_HEADER.length;
+    }
+  }
+
+  /**
+   * Gives the deflater and its buffer back, whether or not the body was
+   * completed
+   */
+  private void endCompression() {
+    if (deflater != null) {
+      Compression.release(encoding, deflater);
+      deflater = null;
+      release(zbuf);
+      zbuf = null;
+      encoding = null;
+      crc = null;
+      rawLength = 0;
+      encodedLength = 0;
+    }
+  }
+
+  /**
+   * Feeds the buffer to the deflater and sends every full buffer of
+   * compressed output, and at the end or on sync the rest of it as well
+   */
+  private void deflate(boolean last, boolean sync) throws IOException {
+    int length = count - HEADROOM;
+    deflater.setInput(buf, HEADROOM, length);
+    if (crc != null) {
+      crc.update(buf, HEADROOM, length);
+    }
+    rawLength += length;
+    if (last) {
+      deflater.finish();
+    }
+    int flush = sync && !last ? Deflater.SYNC_FLUSH : Deflater.NO_FLUSH;
+    while (true) {
+      int room = BUFFER_SIZE - TAIL - zcount;
+      if (room == 0) {
+        emitCompressed(false);
+        continue;
+      }
+      int n = deflater.deflate(zbuf, zcount, room, flush);
+      zcount += n;
+      // output left over if the deflater filled all the room it got
+      if (n < room && (last ? deflater.finished() : deflater.needsInput())) {
+        break;
+      }
+    }
+    if (last) {
+      if (crc != null) {
+        if (zcount + Compression.GZIP_TRAILER > BUFFER_SIZE - TAIL) {
+          emitCompressed(false);
+        }
+        zcount = Compression.gzipTrailer(zbuf, zcount, crc, rawLength);
+      }
+      emitCompressed(true);
+      Compression.counted(rawLength, encodedLength);
+    } else if (sync && zcount > HEADROOM) {
+      emitCompressed(false);
+    }
+  }
+
+  private void emitCompressed(boolean last) throws IOException {
+    encodedLength += zcount - HEADROOM;
+    emit(zbuf, zcount, last);
+    zcount = HEADROOM;
+  }
+
+  /**
+   * Sends body bytes from b[HEADROOM, end), with the header in front if it
+   * hasn't been sent yet and framed as a chunk if the body is chunked
+   * @param b buffer with HEADROOM free bytes in front and TAIL after end
+   * @param last true if these are the last body bytes
+   */
+  private void emit(byte[] b, int end, boolean last) throws IOException {
+    int start = HEADROOM;
+    int bodyLength = end - HEADROOM;
+    byte[] head = null;
+
+    if (!committed) {
+      if (contentLength < 0 && last) {
+        // the whole body is here, so its length is known after all
+        contentLength = bodyLength;
+      }
+      if (contentLength < 0) {
+        if (chunkedAllowed) {
+          chunked = true;
+        } else {
+          keepAlive = false;
+        }
+      }
+      head = head();
+      committed = true;
+    }
+
+    if (chunked) {
+      if (bodyLength > 0) {
+        String size = Integer.toHexString(bodyLength) + "\r\n";
+        start = prepend(b, start, size);
+        b[end++] = '\r';
+        b[end++] = '\n';
+      }
+      if (last) {
+        System.arraycopy(LAST_CHUNK, 0, b, end, LAST_CHUNK.length);
+        end += LAST_CHUNK.length;
+      }
+    }
+
+    if (head != null) {
+      if (head.length <= start) {
+        start -= head.length;
+        System.arraycopy(head, 0, b, start, head.length);
+      } else {
+        // lots of headers, they don't fit in front of the body
+        out.write(head);
+        bytesSent += head.length;
+      }
+    }
+    if (end > start) {
+      out.write(b, start, end - start);
+      bytesSent += end - start;
+    }
+  }
+
+  private static int prepend(byte[] b, int start, String ascii) {
+    start -= ascii.length();
+    for (int i = 0; i < ascii.length(); i++) {
+      b[start + i] = (byte) ascii.charAt(i);
+    }
+    return start;
+  }
+
+  private byte[] head() {
+    StringBuilder builder = new StringBuilder(64 + headers.length());
+    builder.append("HTTP/1.1 ").append(status).append("\r\n");
+    if (headers.indexOf("Content-Type:") < 0) {
+      builder.append("Content-Type: text/html; charset=utf-8\r\n");
+    }
+    builder.append(headers);
+    if (encoding != null) {
+      builder.append("Content-Encoding: ").append(encoding).append("\r\n");
+    }
+    if (!contentEncoding && compressible()) {
+      // caches must keep the compressed and the plain answer apart
+      builder.append("Vary: Accept-Encoding\r\n");
+    }
+    if (chunked) {
+      builder.append("Transfer-Encoding: chunked\r\n");
+    } else if (contentLength >= 0) {
+      builder.append("Content-Length: ").append(contentLength).append("\r\n");
+    }
+    builder.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+    builder.append("\r\n");
+    return builder.toString().getBytes(StandardCharsets.ISO_8859_1);
+  }
+}
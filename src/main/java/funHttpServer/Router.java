@@ -0,0 +1,104 @@
+/*
+Maps request paths to handlers. Paths are registered either as exact matches
+("/json") or as prefixes ("/file/") and stored in a character trie, so
+finding the handler walks the path once no matter how many routes exist.
+An exact match wins over a prefix, and a longer prefix over a shorter one.
+Matching ignores ASCII case and only looks at the path, never the query.
+*/
+
+package funHttpServer;
+
+import java.io.*;
+
+class Router {
+
+  /**
+   * Builds the response for one route
+   */
+  interface Handler {
+    /**
+     * @param request parsed request
+     * @param response status, headers and body of the answer go here
+     * @throws IOException if a file the route needs cannot be read or the
+     *         client can't be written to
+     */
+    void handle(RequestParser request, ResponseWriter response) throws IOException;
+  }
+
+  /**
+   * A handler and the pattern it was registered with, the pattern names the
+   * route in logs and metrics
+   */
+  static class Route {
+    final String pattern;
+    final Handler handler;
+
+    Route(String pattern, Handler handler) {
+      this.pattern = pattern;
+      this.handler = handler;
+    }
+  }
+
+  private static class Node {
+    // children by (lower case) ASCII character
+    final Node[] children = new Node[128];
+    Route exact;
+    Route prefix;
+  }
+
+  private final Node root = new Node();
+
+  /**
+   * Registers a handler for exactly this path
+   */
+  void exact(String path, Handler handler) {
+    node(path).exact = new Route(path, handler);
+  }
+
+  /**
+   * Registers a handler for every path starting with prefix
+   */
+  void prefix(String prefix, Handler handler) {
+    node(prefix).prefix = new Route(prefix, handler);
+  }
+
+  private Node node(String path) {
+    Node node = root;
+    for (int i = 0; i < path.length(); i++) {
+      int c = lower(path.charAt(i));
+      if (c >= 128) {
+        throw new IllegalArgumentException("Route must be ASCII: " + path);
+      }
+      if (node.children[c] == null) {
+        node.children[c] = new Node();
+      }
+      node = node.children[c];
+    }
+    return node;
+  }
+
+  /**
+   * Finds the handler for a path
+   * @param path request path without the query
+   * @return the exact or longest prefix match, null if none
+   */
+  Route find(CharSequence path) {
+    Node node = root;
+    Route best = root.prefix;
+    for (int i = 0; i < path.length(); i++) {
+      int c = lower(path.charAt(i));
+      node = c < 128 ? node.children[c] : null;
+      if (node == null) {
+        return best;
+      }
+      if (node.prefix != null) {
+        best = node.prefix;
+      }
+    }
+    return node.exact != null ? node.exact : best;
+  }
+
+  private static int lower(char c) {
+    return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+  }
+}
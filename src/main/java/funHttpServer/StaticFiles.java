@@ -0,0 +1,599 @@
+/*
+Serves files without pulling them through the heap. The response header is
+built separately with the exact Content-Length and a MIME type guessed from
+the file name, and the body is moved from a FileChannel straight to the
+socket with transferTo, which the OS implements with sendfile where it can.
+
+Files above funHttpServer.mmapThreshold bytes are mapped into memory once
+(in regions, so files over 2 GB work too) and the mapping is shared by all
+requests for the same file version.
+
+Every reply carries validators: Last-Modified and a strong ETag, a hash of
+the content computed once per file version and kept (MAX_ETAGS versions).
+A client whose copy is still current (If-None-Match, or If-Modified-Since
+without it) gets a 304 with no body instead of the file. Cache-Control is
+added per request path as configured with funHttpServer.cacheControl, e.g.
+"*.html=no-cache|/file/=public, max-age=3600" (first match wins, a pattern
+is a path prefix or "*" and a suffix).
+
+A single "Range: bytes=..." is answered with 206 and only that slice, unless
+an If-Range validator (date or ETag) says the client's copy is outdated.
+Ranges that don't overlap the file get 416.
+
+Text-like files are sent gzip or deflate compressed to clients that accept
+it (not for ranges). The compressed copy comes from a FileCache, which
+compresses each file version once, so those replies are written from
+memory. Docroot files use the docroot cache, /file/ targets elsewhere a
+cache of their own, so they never evict the pages. Its ETag is the file's with the encoding appended, the bytes differ.
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+class StaticFiles {
+  private final static Map<String, String> _types = new HashMap<>() {
+    {
+      put("html", "text/html; charset=utf-8");
+      put("htm", "text/html; charset=utf-8");
+      put("txt", "text/plain; charset=utf-8");
+      put("java", "text/plain; charset=utf-8");
+      put("md", "text/plain; charset=utf-8");
+      put("gradle", "text/plain; charset=utf-8");
+      put("css", "text/css; charset=utf-8");
+      put("js", "application/javascript; charset=utf-8");
+      put("json", "application/json; charset=utf-8");
+      put("xml", "application/xml; charset=utf-8");
+      put("svg", "image/svg+xml");
+      put("png", "image/png");
+      put("jpg", "image/jpeg");
+      put("jpeg", "image/jpeg");
+      put("gif", "image/gif");
+      put("ico", "image/x-icon");
+      put("pdf", "application/pdf");
+      put("zip", "application/zip");
+      put("gz", "application/gzip");
+      put("jar", "application/java-archive");
+    }
+  };
+
+  /** files of at least this many bytes are served from memory mappings */
+  static final Config.Setting<Long> MMAP_THRESHOLD = Config.longSetting("mmapThreshold", 8L * 1024 * 1024);
+
+  /** largest single mapping, bigger files are mapped as several regions */
+  static final long REGION_SIZE = 256L * 1024 * 1024;
+
+  /** how many mapped files are kept around */
+  static final int MAX_MAPPED_FILES = 32;
+
+  /** most bytes handed to the socket in one call, so progress shows between calls */
+  static final int MAX_TRANSFER = 1024 * 1024;
+
+  /** how many file versions' entity tags are kept */
+  static final int MAX_ETAGS = 4096;
+
+  /** Cache-Control policies by path pattern, in the order they are tried */
+  static final Config.Setting<Map<String, String>> CACHE_CONTROL =
+      Config.setting("cacheControl", new LinkedHashMap<>(), StaticFiles::cachePolicies);
+
+  /** HTTP-date, e.g. "Sun, 06 Nov 1994 08:49:37 GMT" */
+  static final DateTimeFormatter HTTP_DATE =
+      DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+  // access ordered so the least recently served mapping is dropped first
+  private static final LinkedHashMap<String, MappedFile> _mapped = new LinkedHashMap<>(16, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<String, MappedFile> eldest) {
+      return size() > MAX_MAPPED_FILES;
+    }
+  };
+
+  // access ordered too, a file that isn't asked for any more loses its tag first
+  private static final LinkedHashMap<String, Tagged> _etags = new LinkedHashMap<>(16, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<String, Tagged> eldest) {
+      return size() > MAX_ETAGS;
+    }
+  };
+
+  /**
+   * Entity tag of one version of a file
+   */
+  static class Tagged {
+    final long lastModified;
+    final long length;
+    final String etag;
+
+    Tagged(long lastModified, long length, String etag) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.etag = etag;
+    }
+  }
+
+  /**
+   * Read only mapping of one version of a file
+   */
+  static class MappedFile {
+    final long lastModified;
+    final long length;
+    final MappedByteBuffer[] regions;
+
+    MappedFile(FileChannel ch, long lastModified, long length) throws IOException {
+      this.lastModified = lastModified;
+      this.length = length;
+      regions = new MappedByteBuffer[(int) ((length + REGION_SIZE - 1) / REGION_SIZE)];
+      for (int i = 0; i < regions.length; i++) {
+        long start = i * REGION_SIZE;
+        regions[i] = ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, length - start));
+      }
+    }
+
+    /**
+     * @return a view of the bytes from position up to end, cut at the region boundary
+     */
+    ByteBuffer slice(long position, long end) {
+      int index = (int) (position / REGION_SIZE);
+      long regionStart = index * REGION_SIZE;
+      ByteBuffer view = regions[index].duplicate();
+      view.position((int) (position - regionStart));
+      view.limit((int) Math.min(view.capacity(), end - regionStart));
+      return view;
+    }
+  }
+
+  /**
+   * A file response ready to be written: header bytes followed by a region of
+   * the file, taken either from an open channel or from a mapping. Whoever
+   * writes it must close it.
+   */
+  static class Reply implements Closeable {
+    final int status;
+    final ByteBuffer head;
+    final FileChannel body;
+    final MappedFile mapped;
+    final byte[] data;
+    // read by the write deadline from the timer thread
+    volatile long position;
+    final long start;
+    final long end;
+
+    Reply(int status, byte[] head, FileChannel body, MappedFile mapped, long position, long count) {
+      this(status, head, body, mapped, null, position, count);
+    }
+
+    /**
+     * Reply with a body held in memory
+     */
+    Reply(int status, byte[] head, byte[] data) {
+      this(status, head, null, null, data, 0, data.length);
+    }
+
+    private Reply(int status, byte[] head, FileChannel body, MappedFile mapped, byte[] data,
+        long position, long count) {
+      this.status = status;
+      this.head = ByteBuffer.wrap(head);
+      this.body = body;
+      this.mapped = mapped;
+      this.data = data;
+      this.position = position;
+      this.start = position;
+      this.end = position + count;
+    }
+
+    /**
+     * @return body bytes written so far
+     */
+    long written() {
+      return position - start;
+    }
+
+    /**
+     * @return size of the whole reply, header included
+     */
+    long length() {
+      return head.capacity() + end - start;
+    }
+
+    /**
+     * Writes as much as the channel takes right now
+     * @param ch socket channel, blocking or not
+     * @return true once everything has been written
+     * @throws IOException if the client went away
+     */
+    boolean writeTo(WritableByteChannel ch) throws IOException {
+      if (head.hasRemaining()) {
+        ch.write(head);
+        if (head.hasRemaining()) {
+          return false;
+        }
+      }
+      while (position < end) {
+        long sent;
+        long until = Math.min(end, position + MAX_TRANSFER);
+        if (data != null) {
+          sent = ch.write(ByteBuffer.wrap(data, (int) position, (int) (until - position)));
+        } else if (mapped != null) {
+          sent = ch.write(mapped.slice(position, until));
+        } else {
+          sent = body.transferTo(position, until - position, ch);
+        }
+        if (sent <= 0) {
+          return false;
+        }
+        position += sent;
+      }
+      return true;
+    }
+
+    public void close() throws IOException {
+      if (body != null) {
+        body.close();
+      }
+    }
+  }
+
+  /**
+   * @return the cache holding the compressed copies of f
+   */
+  static FileCache cacheFor(File f) {
+    // docroot targets are canonical, /file/ targets are taken as given
+    return f.toPath().startsWith(WebServer.DOCROOT.toPath()) ? WebServer.fileCache : WebServer.fileRouteCache;
+  }
+
+  /**
+   * Opens the file and builds the header for it, 200 for the whole file or
+   * 206 / 416 if the request asks for a range
+   * @param f regular file to send
+   * @param request parsed request, used for Range and If-Range
+   * @param keepAlive whether the connection stays open afterwards
+   * @return the reply, to be written and closed by the caller
+   * @throws IOException if the file cannot be opened
+   */
+  static Reply prepare(File f, RequestParser request, boolean keepAlive) throws IOException {
+    FileChannel body = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+    MappedFile mapped = null;
+    try {
+      long lastModified = f.lastModified();
+      long length = body.size();
+      boolean mapping = length >= MMAP_THRESHOLD.get();
+      String etag = etag(f.getPath(), body, lastModified, length);
+
+      String type = contentType(f.getName());
+      StringBuilder extra = new StringBuilder();
+      extra.append("Last-Modified: ").append(HTTP_DATE.format(Instant.ofEpochMilli(lastModified))).append("\r\n");
+      extra.append("Accept-Ranges: bytes\r\n");
+      String policy = cachePolicy(request.path());
+      if (policy != null) {
+        extra.append("Cache-Control: ").append(policy).append("\r\n");
+      }
+
+      RequestParser.Slice range = request.header("Range");
+      String encoding = null;
+      byte[] encoded = null;
+      if (Compression.ENABLED.get() && Compression.compressible(type)) {
+        extra.append("Vary: Accept-Encoding\r\n");
+        // mapped files are too big to be compressed in memory
+        String accepted = range == null && !mapping && length >= Compression.MIN_BYTES.get()
+            ? Compression.negotiate(request.header("Accept-Encoding")) : null;
+        encoded = accepted != null ? cacheFor(f).get(f, accepted) : null;
+        if (encoded != null && encoded.length < length) {
+          encoding = accepted;
+        }
+      }
+      // validators of what would be sent, the file or its compressed copy
+      String tag = encoding != null ? variantTag(etag, encoding) : etag;
+      extra.append("ETag: ").append(tag).append("\r\n");
+      if (notModified(request, tag, lastModified)) {
+        body.close();
+        return new Reply(304, head("304 Not Modified", null, -1, extra.toString(), keepAlive), new byte[0]);
+      }
+      if (encoding != null) {
+        body.close();
+        extra.append("Content-Encoding: ").append(encoding).append("\r\n");
+        return new Reply(200, head("200 OK", type, encoded.length, extra.toString(), keepAlive), encoded);
+      }
+
+      if (mapping) {
+        mapped = map(f.getPath(), body, lastModified, length);
+        body.close();
+        body = null;
+      }
+      if (range != null && ifRangeMatches(request.header("If-Range"), lastModified, etag)) {
+        long[] slice = parseRange(range.toString(), length);
+        if (slice == UNSATISFIABLE) {
+          extra.append("Content-Range: bytes */").append(length).append("\r\n");
+          return new Reply(416, head("416 Range Not Satisfiable", type, 0, extra.toString(), keepAlive),
+              body, mapped, 0, 0);
+        }
+        if (slice != null) {
+          extra.append("Content-Range: bytes ").append(slice[0]).append("-").append(slice[1] - 1)
+              .append("/").append(length).append("\r\n");
+          return new Reply(206, head("206 Partial Content", type, slice[1] - slice[0], extra.toString(), keepAlive),
+              body, mapped, slice[0], slice[1] - slice[0]);
+        }
+      }
+      return new Reply(200, head("200 OK", type, length, extra.toString(), keepAlive), body, mapped, 0, length);
+    } catch (IOException e) {
+      if (body != null) {
+        body.close();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the entity tag of this file version, hashing the file if needed
+   * @param ch the open file, read with positional reads
+   * @return the tag, quoted
+   */
+  static String etag(String path, FileChannel ch, long lastModified, long length) throws IOException {
+    synchronized (_etags) {
+      Tagged tagged = _etags.get(path);
+      if (tagged != null && tagged.lastModified == lastModified && tagged.length == length) {
+        return tagged.etag;
+      }
+    }
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM has to provide it
+      throw new IllegalStateException(e);
+    }
+    ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+    long position = 0;
+    while (position < length) {
+      buf.clear();
+      int n = ch.read(buf, position);
+      if (n < 0) {
+        break;
+      }
+      buf.flip();
+      digest.update(buf);
+      position += n;
+    }
+    // 128 bits tell the versions of a file apart well enough
+    String etag = "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest.digest(), 16))
+        + "\"";
+    synchronized (_etags) {
+      _etags.put(path, new Tagged(lastModified, length, etag));
+    }
+    return etag;
+  }
+
+  /**
+   * @return the tag of an encoded copy, e.g. "abc-gzip" for "abc"
+   */
+  static String variantTag(String etag, String encoding) {
+    return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+  }
+
+  /**
+   * Evaluates If-None-Match, or If-Modified-Since if there is none
+   * @param etag tag of the representation that would be sent
+   * @return true if the client's copy is current, answered with 304
+   */
+  static boolean notModified(RequestParser request, String etag, long lastModified) {
+    RequestParser.Slice ifNoneMatch = request.header("If-None-Match");
+    if (ifNoneMatch != null) {
+      return matches(ifNoneMatch.toString(), etag, false);
+    }
+    RequestParser.Slice ifModifiedSince = request.header("If-Modified-Since");
+    if (ifModifiedSince == null) {
+      return false;
+    }
+    try {
+      ZonedDateTime date = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME);
+      // HTTP dates have whole seconds only
+      return lastModified / 1000 <= date.toEpochSecond();
+    } catch (DateTimeParseException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @param list "*" or entity tags separated by commas
+   * @param etag our tag
+   * @param strong true for the strong comparison, where weak tags never match
+   * @return true if one of the tags is ours
+   */
+  static boolean matches(String list, String etag, boolean strong) {
+    for (String candidate : list.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.equals("*")) {
+        return true;
+      }
+      if (candidate.startsWith("W/")) {
+        if (strong) {
+          continue;
+        }
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param path request path
+   * @return the configured Cache-Control value for it, null for none
+   */
+  static String cachePolicy(CharSequence path) {
+    String p = path.toString();
+    for (Map.Entry<String, String> policy : CACHE_CONTROL.get().entrySet()) {
+      String pattern = policy.getKey();
+      if (pattern.startsWith("*") ? p.endsWith(pattern.substring(1)) : p.startsWith(pattern)) {
+        return policy.getValue();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Parses funHttpServer.cacheControl
+   * @param rules "pattern=policy" separated by "|"
+   */
+  private static Map<String, String> cachePolicies(String rules) {
+    Map<String, String> policies = new LinkedHashMap<>();
+    for (String rule : rules.split("\\|")) {
+      if (rule.trim().isEmpty()) {
+        continue;
+      }
+      int eq = rule.indexOf('=');
+      if (eq <= 0) {
+        throw new IllegalArgumentException("expected pattern=policy, got " + rule);
+      }
+      policies.put(rule.substring(0, eq).trim(), rule.substring(eq + 1).trim());
+    }
+    return policies;
+  }
+
+  /**
+   * Returns the shared mapping of this file version, mapping it if needed
+   */
+  private static MappedFile map(String path, FileChannel ch, long lastModified, long length) throws IOException {
+    synchronized (_mapped) {
+      MappedFile file = _mapped.get(path);
+      if (file != null && file.lastModified == lastModified && file.length == length) {
+        return file;
+      }
+    }
+    // the old mapping, if any, is released by the GC once no reply uses it
+    MappedFile file = new MappedFile(ch, lastModified, length);
+    synchronized (_mapped) {
+      _mapped.put(path, file);
+    }
+    return file;
+  }
+
+  /** marker returned by parseRange for a range outside the file */
+  static final long[] UNSATISFIABLE = new long[0];
+
+  /**
+   * Parses a single byte range
+   * @param range value of the Range header, e.g. "bytes=0-99", "bytes=100-" or "bytes=-100"
+   * @param length file length
+   * @return {start, end exclusive}, UNSATISFIABLE, or null if the header is
+   *         malformed or asks for several ranges (then the whole file is sent)
+   */
+  static long[] parseRange(String range, long length) {
+    range = range.trim();
+    if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+      return null;
+    }
+    String spec = range.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      if (first.isEmpty()) {
+        // suffix range: the last n bytes
+        long n = Long.parseLong(last);
+        if (n <= 0 || length == 0) {
+          return UNSATISFIABLE;
+        }
+        return new long[] { Math.max(0, length - n), length };
+      }
+      long start = Long.parseLong(first);
+      long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+      if (end < start) {
+        return null;
+      }
+      if (start >= length) {
+        return UNSATISFIABLE;
+      }
+      return new long[] { start, Math.min(end, length - 1) + 1 };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param ifRange value of the If-Range header or null
+   * @param lastModified modification time of the file
+   * @param etag entity tag of the file
+   * @return true if the range may be served
+   */
+  static boolean ifRangeMatches(CharSequence ifRange, long lastModified, String etag) {
+    if (ifRange == null) {
+      return true;
+    }
+    String value = ifRange.toString().trim();
+    if (value.startsWith("\"") || value.startsWith("W/")) {
+      // ranges need the very same bytes, so only the strong comparison
+      return matches(value, etag, true);
+    }
+    try {
+      ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+      // HTTP dates have whole seconds only
+      return date.toEpochSecond() == lastModified / 1000;
+    } catch (DateTimeParseException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Builds a response header
+   * @param status status code and reason, e.g. "200 OK"
+   * @param contentType value of the Content-Type header, null for none (304)
+   * @param length number of body bytes, -1 for no Content-Length (304)
+   * @param extra further header lines, each ending in CRLF
+   * @param keepAlive whether the connection stays open afterwards
+   * @return the header bytes including the blank line
+   */
+  static byte[] head(String status, String contentType, long length, String extra, boolean keepAlive) {
+    StringBuilder builder = new StringBuilder(128 + extra.length());
+    builder.append("HTTP/1.1 ").append(status).append("\r\n");
+    if (contentType != null) {
+      builder.append("Content-Type: ").append(contentType).append("\r\n");
+    }
+    if (length >= 0) {
+      builder.append("Content-Length: ").append(length).append("\r\n");
+    }
+    builder.append(extra);
+    builder.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+    builder.append("\r\n");
+    return builder.toString().getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Guesses the MIME type from the file extension
+   * @param name file name
+   * @return the content type, application/octet-stream if unknown
+   */
+  static String contentType(String name) {
+    int dot = name.lastIndexOf('.');
+    if (dot >= 0) {
+      String type = _types.get(name.substring(dot + 1).toLowerCase());
+      if (type != null) {
+        return type;
+      }
+    }
+    String guess = URLConnection.guessContentTypeFromName(name);
+    return guess != null ? guess : "application/octet-stream";
+  }
+}
@@ -0,0 +1,72 @@
+/*
+Minimal template engine for the pages in www/. A template is parsed once into
+the literal text between placeholders and the placeholder names (written as
+${name}), so rendering is just appending pieces into a buffer that is sized
+up front. Placeholders without a value are left in the output unchanged.
+*/
+
+package funHttpServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+class Template {
+  // literals.length == names.length + 1, output is literal, name, literal, ...
+  private final String[] literals;
+  private final String[] names;
+
+  private Template(String[] literals, String[] names) {
+    this.literals = literals;
+    this.names = names;
+  }
+
+  /**
+   * Splits the text into literals and ${name} placeholders
+   * @param text template source
+   * @return the compiled template
+   */
+  static Template compile(String text) {
+    List<String> literals = new ArrayList<>();
+    List<String> names = new ArrayList<>();
+    int pos = 0;
+    while (true) {
+      int start = text.indexOf("${", pos);
+      int end = start < 0 ? -1 : text.indexOf('}', start + 2);
+      if (end < 0) {
+        break;
+      }
+      literals.add(text.substring(pos, start));
+      names.add(text.substring(start + 2, end));
+      pos = end + 1;
+    }
+    literals.add(text.substring(pos));
+    return new Template(literals.toArray(new String[0]), names.toArray(new String[0]));
+  }
+
+  /**
+   * Fills in the placeholders
+   * @param values placeholder values by name
+   * @return the rendered text
+   */
+  String render(Map<String, String> values) {
+    // size the buffer for the whole output so it never has to grow
+    int size = 0;
+    String[] parts = new String[names.length];
+    for (int i = 0; i < names.length; i++) {
+      String value = values.get(names[i]);
+      parts[i] = value != null ? value : "${" + names[i] + "}";
+      size += parts[i].length();
+    }
+    for (String literal : literals) {
+      size += literal.length();
+    }
+
+    StringBuilder builder = new StringBuilder(size);
+    for (int i = 0; i < names.length; i++) {
+      builder.append(literals[i]).append(parts[i]);
+    }
+    builder.append(literals[names.length]);
+    return builder.toString();
+  }
+}
@@ -0,0 +1,128 @@
+/*
+Keeps compiled templates and rendered pages of the docroot in memory until
+something in the docroot changes. A daemon thread waits on a WatchService for
+the directory and drops everything on any create, modify or delete, so the
+next request renders (and lists the directory) again. Without a WatchService
+nothing is cached and every request renders.
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+class TemplateCache {
+  private final File dir;
+  private final ConcurrentHashMap<String, Cached<Template>> templates = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Cached<String>> pages = new ConcurrentHashMap<>();
+
+  // bumped on every change in dir, entries of an older version are stale
+  private final AtomicLong version = new AtomicLong();
+  private volatile boolean watching = false;
+
+  /**
+   * A value together with the docroot version it was built from
+   */
+  static class Cached<T> {
+    final long version;
+    final T value;
+
+    Cached(long version, T value) {
+      this.version = version;
+      this.value = value;
+    }
+  }
+
+  /**
+   * @param dir docroot directory to watch
+   */
+  TemplateCache(File dir) {
+    this.dir = dir;
+    try {
+      WatchService watcher = FileSystems.getDefault().newWatchService();
+      dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+      Thread t = new Thread(() -> watch(watcher), "docroot-watcher");
+      t.setDaemon(true);
+      t.start();
+      watching = true;
+    } catch (IOException e) {
+      Log.warn("Cannot watch " + dir + ", pages are rendered on every request: " + e.getMessage());
+    }
+  }
+
+  private void watch(WatchService watcher) {
+    while (true) {
+      try {
+        WatchKey key = watcher.take();
+        key.pollEvents();
+        invalidate();
+        if (!key.reset()) {
+          // directory is gone, stop caching
+          watching = false;
+          invalidate();
+          return;
+        }
+      } catch (InterruptedException e) {
+        watching = false;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Drops all compiled templates and rendered pages
+   */
+  void invalidate() {
+    version.incrementAndGet();
+    templates.clear();
+    pages.clear();
+  }
+
+  /**
+   * @param name file name inside the docroot
+   * @return the compiled template for the current content of the file
+   * @throws IOException if the file cannot be read
+   */
+  Template template(String name) throws IOException {
+    long current = version.get();
+    Cached<Template> cached = templates.get(name);
+    if (cached != null && cached.version == current) {
+      return cached.value;
+    }
+    Template template = Template.compile(new String(WebServer.fileCache.get(new File(dir, name))));
+    if (watching) {
+      templates.put(name, new Cached<>(current, template));
+    }
+    return template;
+  }
+
+  /**
+   * Returns the cached rendering of a page or renders it
+   * @param key name of the page
+   * @param render produces the page, may throw UncheckedIOException
+   * @return the rendered page
+   * @throws IOException if rendering fails
+   */
+  String page(String key, Supplier<String> render) throws IOException {
+    long current = version.get();
+    Cached<String> cached = pages.get(key);
+    if (cached != null && cached.version == current) {
+      return cached.value;
+    }
+    String page;
+    try {
+      page = render.get();
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    // a change during rendering bumped the version, so this entry is stale already
+    if (watching) {
+      pages.put(key, new Cached<>(current, page));
+    }
+    return page;
+  }
+}
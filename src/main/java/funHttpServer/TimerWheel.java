@@ -0,0 +1,202 @@
+/*
+Hashed timer wheel. Every connection arms and cancels several deadlines per
+request, which a priority queue (like ScheduledThreadPoolExecutor) pays for
+with O(log n) work under a lock each time. Here scheduling only appends the
+timeout to a lock-free queue, cancelling only flips its state, and a single
+thread does the rest: once per tick it moves new timeouts into the slot of
+the wheel they expire in, unlinks cancelled ones and runs the ones whose
+slot has come round for the last time.
+
+Deadlines are only as precise as the tick (100 ms by default), which is
+plenty for timeouts measured in seconds. Expiry tasks run on the timer
+thread, so they must be short (close a socket, hand work to another thread).
+*/
+
+package funHttpServer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+final class TimerWheel {
+  private static final int PENDING = 0;
+  private static final int CANCELLED = 1;
+  private static final int EXPIRED = 2;
+
+  /**
+   * A scheduled task, linked into one slot of the wheel by the timer thread
+   */
+  static final class Timeout {
+    private final Runnable task;
+    private final long deadline;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    private final TimerWheel wheel;
+    // everything below is only touched by the timer thread
+    private long rounds;
+    private Slot slot;
+    private Timeout prev;
+    private Timeout next;
+
+    private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+      this.wheel = wheel;
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * @return false if the task already ran or was cancelled before
+     */
+    boolean cancel() {
+      if (!state.compareAndSet(PENDING, CANCELLED)) {
+        return false;
+      }
+      wheel.pending.decrementAndGet();
+      wheel.cancelled.add(this);
+      return true;
+    }
+  }
+
+  /**
+   * Doubly linked list of the timeouts in one slot
+   */
+  private static final class Slot {
+    Timeout head;
+    Timeout tail;
+
+    void add(Timeout t) {
+      t.slot = this;
+      if (head == null) {
+        head = tail = t;
+      } else {
+        tail.next = t;
+        t.prev = tail;
+        tail = t;
+      }
+    }
+
+    void remove(Timeout t) {
+      if (t.prev != null) {
+        t.prev.next = t.next;
+      } else {
+        head = t.next;
+      }
+      if (t.next != null) {
+        t.next.prev = t.prev;
+      } else {
+        tail = t.prev;
+      }
+      t.prev = t.next = null;
+      t.slot = null;
+    }
+  }
+
+  private final long tickNanos;
+  private final Slot[] wheel;
+  private final int mask;
+  private final long start = System.nanoTime();
+  private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+  private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pending = new AtomicInteger();
+  // ticks done so far, timer thread only
+  private long tick = 0;
+
+  /**
+   * Starts the timer thread
+   * @param tickMillis precision of the deadlines
+   * @param slots size of the wheel, rounded up to a power of two; a deadline
+   *        more than slots ticks away goes round the wheel more than once
+   * @param name of the timer thread
+   */
+  TimerWheel(long tickMillis, int slots, String name) {
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+    int size = Integer.highestOneBit(Math.max(2, slots * 2 - 1));
+    this.wheel = new Slot[size];
+    for (int i = 0; i < size; i++) {
+      wheel[i] = new Slot();
+    }
+    this.mask = size - 1;
+    Thread thread = new Thread(this::run, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Runs task on the timer thread once delay has passed, may be called from
+   * any thread
+   * @return handle to cancel it
+   */
+  Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+    Timeout t = new Timeout(this, task, System.nanoTime() - start + unit.toNanos(delay));
+    pending.incrementAndGet();
+    added.add(t);
+    return t;
+  }
+
+  /**
+   * @return timeouts scheduled and neither run nor cancelled yet
+   */
+  int pending() {
+    return pending.get();
+  }
+
+  private void run() {
+    while (true) {
+      // sleep until the end of the current tick
+      long tickEnd = tickNanos * (tick + 1);
+      long sleep;
+      while ((sleep = tickEnd - (System.nanoTime() - start)) > 0) {
+        LockSupport.parkNanos(sleep);
+      }
+      transferAdded();
+      removeCancelled();
+      expire(wheel[(int) (tick & mask)]);
+      tick++;
+    }
+  }
+
+  private void transferAdded() {
+    Timeout t;
+    while ((t = added.poll()) != null) {
+      if (t.state.get() != PENDING) {
+        // cancelled before it ever reached the wheel
+        continue;
+      }
+      long expiresAt = t.deadline / tickNanos;
+      t.rounds = Math.max(0, (expiresAt - tick) / wheel.length);
+      // a deadline already in the past goes into the current slot
+      wheel[(int) (Math.max(expiresAt, tick) & mask)].add(t);
+    }
+  }
+
+  private void removeCancelled() {
+    Timeout t;
+    while ((t = cancelled.poll()) != null) {
+      if (t.slot != null) {
+        t.slot.remove(t);
+      }
+    }
+  }
+
+  private void expire(Slot slot) {
+    Timeout t = slot.head;
+    while (t != null) {
+      Timeout next = t.next;
+      if (t.rounds > 0) {
+        t.rounds--;
+      } else {
+        slot.remove(t);
+        if (t.state.compareAndSet(PENDING, EXPIRED)) {
+          pending.decrementAndGet();
+          try {
+            t.task.run();
+          } catch (Throwable e) {
+            Log.error("Timer task failed", e);
+          }
+        }
+      }
+      t = next;
+    }
+  }
+}
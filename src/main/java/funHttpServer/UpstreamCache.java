@@ -0,0 +1,204 @@
+/*
+In-memory cache for answers from an upstream API, so a hundred users asking
+for the same GitHub query cost one request to GitHub instead of a hundred.
+
+- every entry lives for a fixed time (ttl) after it was fetched
+- the number of entries is bounded, the least recently used one goes first
+- concurrent misses for the same key share one in-flight fetch instead of
+  each going upstream (single flight)
+- optionally an expired entry is still served while one refresh runs in
+  the background (stale while revalidate). If the refresh fails the stale
+  entry stays and the next request tries again
+
+Failed fetches are never cached.
+*/
+
+package funHttpServer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+class UpstreamCache {
+  // changed by the setters below while the server runs, see Config
+  private volatile int maxEntries;
+  private volatile long ttlNanos;
+  private volatile boolean staleWhileRevalidate;
+
+  // access ordered, so iteration starts at the least recently used entry
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  // fetches running right now, by key
+  private final HashMap<String, CompletableFuture<String>> inFlight = new HashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder staleHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+
+  /**
+   * A cached answer and when it stops being fresh
+   */
+  static class Entry {
+    final String value;
+    final long expires;
+
+    Entry(String value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * @param maxEntries maximum number of answers kept
+   * @param ttlMillis how long an answer is served without asking upstream again
+   * @param staleWhileRevalidate serve expired answers while they are refreshed
+   */
+  UpstreamCache(int maxEntries, long ttlMillis, boolean staleWhileRevalidate) {
+    this.maxEntries = maxEntries;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    this.staleWhileRevalidate = staleWhileRevalidate;
+  }
+
+  /**
+   * Returns the cached answer for key or fetches it
+   * @param key normalized request, e.g. "users/amehlhase316/repos"
+   * @param fetch starts the upstream request for a key
+   * @return completes with the answer, or exceptionally like the fetch did
+   */
+  CompletableFuture<String> get(String key, Function<String, CompletableFuture<String>> fetch) {
+    CompletableFuture<String> pending;
+    CompletableFuture<String> started = null;
+    String stale = null;
+
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null && System.nanoTime() - entry.expires < 0) {
+        hits.increment();
+        return CompletableFuture.completedFuture(entry.value);
+      }
+      pending = inFlight.get(key);
+      if (entry != null && staleWhileRevalidate) {
+        staleHits.increment();
+        stale = entry.value;
+      } else if (pending != null) {
+        coalesced.increment();
+        return pending;
+      } else {
+        misses.increment();
+      }
+      if (pending == null) {
+        // this caller leads, everyone else asking meanwhile waits for it
+        started = new CompletableFuture<>();
+        inFlight.put(key, started);
+      }
+    }
+
+    if (started != null) {
+      fetch(key, fetch, started);
+    }
+    return stale != null ? CompletableFuture.completedFuture(stale) : started;
+  }
+
+  private void fetch(String key, Function<String, CompletableFuture<String>> fetch,
+      CompletableFuture<String> result) {
+    CompletableFuture<String> upstream;
+    try {
+      upstream = fetch.apply(key);
+    } catch (RuntimeException e) {
+      upstream = CompletableFuture.failedFuture(e);
+    }
+    upstream.whenComplete((value, error) -> {
+      synchronized (this) {
+        inFlight.remove(key);
+        if (error == null) {
+          put(key, new Entry(value, System.nanoTime() + ttlNanos));
+        } else {
+          failures.increment();
+        }
+      }
+      // completed outside the lock, waiting callers continue on this thread
+      if (error == null) {
+        result.complete(value);
+      } else {
+        result.completeExceptionally(error);
+      }
+    });
+  }
+
+  /**
+   * Changes the number of answers kept, fewer evicts right away
+   */
+  synchronized void maxEntries(int maxEntries) {
+    this.maxEntries = maxEntries;
+    evict();
+  }
+
+  /**
+   * Changes how long answers fetched from now on stay fresh
+   */
+  void ttl(long ttlMillis) {
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+  }
+
+  void staleWhileRevalidate(boolean staleWhileRevalidate) {
+    this.staleWhileRevalidate = staleWhileRevalidate;
+  }
+
+  private void put(String key, Entry entry) {
+    entries.put(key, entry);
+    evict();
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (entries.size() > maxEntries && it.hasNext()) {
+      it.next();
+      it.remove();
+      evictions.increment();
+    }
+  }
+
+  long hits() {
+    return hits.sum();
+  }
+
+  long staleHits() {
+    return staleHits.sum();
+  }
+
+  long misses() {
+    return misses.sum();
+  }
+
+  long coalesced() {
+    return coalesced.sum();
+  }
+
+  long evictions() {
+    return evictions.sum();
+  }
+
+  long failures() {
+    return failures.sum();
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return one line summary of the cache counters
+   */
+  String stats() {
+    return "entries=" + size() + "/" + maxEntries + " hits=" + hits() + " stale=" + staleHits()
+        + " misses=" + misses() + " coalesced=" + coalesced() + " evictions=" + evictions()
+        + " failures=" + failures();
+  }
+}
@@ -0,0 +1,154 @@
+/*
+Client for the upstream APIs a route calls, e.g. GitHub for /github. It wraps
+one shared java.net.http.HttpClient, which keeps connections to a host open
+and reuses them, speaks HTTP/2 where the server supports it and never blocks
+the caller: get() returns right away and the body is read later on the
+client's own threads. A BodyReader consumes it as a stream while it arrives,
+so e.g. a large JSON answer is never held in memory as a whole.
+
+The timeout covers the whole exchange, the body included: an upstream that
+stalls half way through its answer is cut off like one that never answers,
+and the read waiting for it is aborted.
+
+Requests are resolved against a base URL, so a test can point the client at
+a local stub server instead of the real API.
+*/
+
+package funHttpServer;
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class UpstreamClient {
+  private final URI base;
+  private volatile Duration timeout;
+  private final HttpClient client;
+  // the client's threads, body reads block on them while the bytes arrive
+  private final ExecutorService readers;
+
+  /**
+   * Consumes a response body
+   */
+  interface BodyReader<T> {
+    /**
+     * @param body the body as it arrives, closed by the caller
+     * @return what the request completes with
+     * @throws IOException if reading fails or the body isn't what was expected
+     */
+    T read(InputStream body) throws IOException;
+  }
+
+  /**
+   * @param baseUrl URL the request paths are resolved against, e.g. "https://api.github.com/"
+   * @param connectTimeoutMillis how long opening a connection may take
+   * @param timeoutMillis how long a request may take, from sending it to the end of the body
+   */
+  UpstreamClient(String baseUrl, long connectTimeoutMillis, long timeoutMillis) {
+    this.base = URI.create(baseUrl.endsWith("/") ? baseUrl : baseUrl + "/");
+    this.timeout = Duration.ofMillis(timeoutMillis);
+    AtomicInteger count = new AtomicInteger();
+    this.readers = Executors.newCachedThreadPool(task -> {
+      Thread t = new Thread(task, "upstream-" + count.incrementAndGet());
+      // never keeps the JVM alive
+      t.setDaemon(true);
+      return t;
+    });
+    this.client = HttpClient.newBuilder()
+        .executor(readers)
+        .version(HttpClient.Version.HTTP_2)
+        .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build();
+  }
+
+  /**
+   * Changes the timeout of requests started from now on
+   */
+  void timeout(long timeoutMillis) {
+    this.timeout = Duration.ofMillis(timeoutMillis);
+  }
+
+  /**
+   * Starts a GET request for the whole body as text
+   * @see #get(String, BodyReader)
+   */
+  CompletableFuture<String> get(String path) {
+    return get(path, body -> new String(body.readAllBytes(), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Starts a GET request
+   * @param path resolved against the base URL, e.g. "users/amehlhase316/repos"
+   * @param reader consumes the body of a 2xx answer, on one of the client's threads
+   * @return completes with what the reader returned, or exceptionally with an
+   *         IOException if the request fails, times out (HttpTimeoutException),
+   *         isn't answered with a 2xx status or the reader fails
+   * @throws IllegalArgumentException if path is not a valid URI reference
+   */
+  <T> CompletableFuture<T> get(String path, BodyReader<T> reader) {
+    URI uri = base.resolve(path);
+    Duration limit = timeout;
+    HttpRequest request = HttpRequest.newBuilder(uri)
+        // only covers the wait for the response headers, the orTimeout below the rest
+        .timeout(limit)
+        .header("Accept", "application/json")
+        .header("User-Agent", "funHttpServer")
+        .GET()
+        .build();
+    CompletableFuture<HttpResponse<InputStream>> sent =
+        client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+    CompletableFuture<T> result = new CompletableFuture<>();
+    sent.whenCompleteAsync((response, error) -> {
+      if (error != null) {
+        result.completeExceptionally(error);
+        return;
+      }
+      try (InputStream body = response.body()) {
+        if (result.isDone()) {
+          // timed out while the headers arrived
+          return;
+        }
+        if (response.statusCode() / 100 != 2) {
+          throw new IOException(uri + " answered " + response.statusCode());
+        }
+        result.complete(reader.read(body));
+      } catch (IOException | RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    }, readers);
+    result.orTimeout(limit.toMillis(), TimeUnit.MILLISECONDS).whenComplete((value, error) -> {
+      if (error instanceof TimeoutException) {
+        // closing the body makes a read waiting for more bytes fail
+        sent.thenAccept(response -> closeQuietly(response.body()));
+        sent.cancel(true);
+      }
+    });
+    // a timeout fires on the JDK's one delay thread, the caller carries on elsewhere
+    return result.exceptionallyComposeAsync(error -> CompletableFuture.failedFuture(
+        error instanceof TimeoutException
+            ? new HttpTimeoutException(uri + " took longer than " + limit.toMillis() + " ms")
+            : error instanceof CompletionException && error.getCause() != null ? error.getCause() : error),
+        readers);
+  }
+
+  private static void closeQuietly(Closeable c) {
+    try {
+      c.close();
+    } catch (IOException e) {
+      // aborted anyway
+    }
+  }
+}
@@ -4,7 +4,8 @@ localhost:9000/ and show you the root.html webpage from the www/root.html folder
 You can also do some other simple GET requests:
 1) /random shows you a random picture (well random from the set defined)
 2) json shows you the response as JSON for /random instead the html page
-3) /file/filename shows you the raw file (not as HTML)
+3) /file/filename shows you the raw file (not as HTML), files in www/ can be
+   fetched directly too (/index.html). Both support Range requests
 4) /multiply?num1=3&num2=4 multiplies the two inputs and responses with the result
 5) /github?query=users/amehlhase316/repos (or other GitHub repo owners) will lead to receiving
    JSON which will for now only be printed in the console. See the todo below
@@ -12,6 +13,8 @@ You can also do some other simple GET requests:
 /profile?Name=asdf&Birthday=01/01/1900
 7) You can enter repeat? as an option, copy paste the below example
 /repeat?string=Test&num=50
+8) /cachestats shows the hit and miss counters of the in-memory file and GitHub caches
+9) /metrics shows request counters and latency histograms in the Prometheus format
 The reading of the request is done "manually", meaning no library that helps making things a 
 little easier is used. This is done so you see exactly how to pars the request and 
 write a response back
@@ -21,59 +24,498 @@ package funHttpServer;
 
 import java.io.*;
 import java.net.*;
+import java.net.http.HttpTimeoutException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Random;
 import java.util.Map;
 import java.util.LinkedHashMap;
-import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.lang.*;
+import java.lang.reflect.Method;
 
 
 
 class WebServer {
+  static {
+    // first of all, so every setting below already sees the config file
+    Config.load();
+  }
+
   public static void main(String args[]) {
-    WebServer server = new WebServer(8888);
+    // optional first argument picks how accepted sockets are handled
+    String mode = args.length > 0 ? args[0] : System.getProperty("funHttpServer.mode", "virtual");
+    WebServer server = new WebServer(Integer.getInteger("funHttpServer.port", 8888),
+        Mode.valueOf(mode.toUpperCase()), Integer.getInteger("funHttpServer.threads", DEFAULT_POOL_SIZE));
+  }
+
+  /**
+   * How accepted sockets are handed off for processing
+   */
+  enum Mode {
+    /** accept, respond and close on the main thread, one client at a time */
+    SINGLE,
+    /** one virtual thread per connection, falls back to POOL if the JVM has none */
+    VIRTUAL,
+    /** bounded pool of platform threads, the acceptor runs overflow itself */
+    POOL,
+    /** non-blocking selector event loops, one per core, see NioServer */
+    NIO
+  }
+
+  static final int DEFAULT_POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+  /** pending connections the kernel queues for accept, 0 for its default */
+  static final int BACKLOG = Integer.getInteger("funHttpServer.backlog", 0);
+  static final boolean REUSE_ADDRESS = !"false".equalsIgnoreCase(System.getProperty("funHttpServer.reuseAddress"));
+
+  /** socket options of accepted connections, buffer sizes of 0 leave the kernel's */
+  static final Config.Setting<Boolean> TCP_NO_DELAY = Config.booleanSetting("tcpNoDelay", true);
+  static final Config.Setting<Integer> RECEIVE_BUFFER = Config.intSetting("receiveBuffer", 0);
+  static final Config.Setting<Integer> SEND_BUFFER = Config.intSetting("sendBuffer", 0);
+
+  /** runs connections and the routes of pipelined requests, null in SINGLE mode */
+  private ExecutorService executor;
+
+  /**
+   * Server that doesn't listen, its routes are only reached through
+   * createResponse (used by the benchmarks)
+   */
+  WebServer() {
   }
 
   /**
-   * Main thread
+   * Main thread, handles one connection at a time
    * @param port to listen on
    */
   public WebServer(int port) {
-    ServerSocket server = null;
-    Socket sock = null;
-    InputStream in = null;
-    OutputStream out = null;
+    this(port, Mode.SINGLE, DEFAULT_POOL_SIZE);
+  }
+
+  /**
+   * Main thread, accepts connections and hands them off according to mode
+   * @param port to listen on
+   * @param mode how each accepted socket is processed
+   * @param poolSize number of worker threads used in POOL mode (or as fallback)
+   */
+  public WebServer(int port, Mode mode, int poolSize) {
+    if (mode == Mode.NIO) {
+      runNio(port, poolSize);
+      return;
+    }
 
+    executor = newConnectionExecutor(mode, poolSize);
+
+    // accepted through channels so file bodies can be sent with transferTo.
+    // SINGLE serves one client at a time, more acceptors would change that
+    try (Acceptors acceptors = new Acceptors(port, mode == Mode.SINGLE ? 1 : Acceptors.COUNT)) {
+      acceptors.run((ch, acceptedAt) -> {
+        Socket sock = ch.socket();
+        if (executor == null) {
+          handleConnection(sock, acceptedAt);
+        } else {
+          executor.execute(() -> handleConnection(sock, acceptedAt));
+        }
+      });
+    } catch (IOException e) {
+      Log.error("Accepting connections failed", e);
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Binds a listening channel with the configured backlog and options, see
+   * Acceptors
+   * @param server channel to bind
+   * @param port to listen on
+   */
+  static void listen(ServerSocketChannel server, int port) throws IOException {
+    server.setOption(StandardSocketOptions.SO_REUSEADDR, REUSE_ADDRESS);
+    if (RECEIVE_BUFFER.get() > 0) {
+      // accepted sockets inherit it, and the window scale is settled during the handshake
+      server.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER.get());
+    }
+    server.bind(new InetSocketAddress(port), BACKLOG);
+  }
+
+  /**
+   * Applies the current socket options to an accepted connection
+   */
+  static void configure(SocketChannel ch) throws IOException {
+    // small responses go out right away instead of waiting for an ACK (Nagle)
+    ch.setOption(StandardSocketOptions.TCP_NODELAY, TCP_NO_DELAY.get());
+    if (RECEIVE_BUFFER.get() > 0) {
+      ch.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER.get());
+    }
+    if (SEND_BUFFER.get() > 0) {
+      ch.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER.get());
+    }
+  }
+
+  /**
+   * Runs the selector based engine until it fails
+   * @param port to listen on
+   * @param poolSize number of route workers if virtual threads are not available
+   */
+  private void runNio(int port, int poolSize) {
+    ExecutorService workers = newWorkerExecutor(poolSize);
     try {
-      server = new ServerSocket(port);
-      while (true) {
-        sock = server.accept();
-        out = sock.getOutputStream();
-        in = sock.getInputStream();
-        byte[] response = createResponse(in);
-        out.write(response);
-        out.flush();
-        in.close();
-        out.close();
+      int loops = Integer.getInteger("funHttpServer.loops", Runtime.getRuntime().availableProcessors());
+      new NioServer(this, loops, workers).run(port);
+    } catch (IOException e) {
+      Log.error("NIO engine failed", e);
+    } finally {
+      workers.shutdown();
+    }
+  }
+
+  /**
+   * Creates the executor accepted sockets are handed to
+   * @param mode requested execution mode
+   * @param poolSize number of platform threads for the bounded pool
+   * @return the executor or null if connections run on the accepting thread
+   */
+  static ExecutorService newConnectionExecutor(Mode mode, int poolSize) {
+    if (mode == Mode.SINGLE) {
+      return null;
+    }
+    if (mode == Mode.VIRTUAL) {
+      ExecutorService virtual = virtualThreads(poolSize);
+      if (virtual != null) {
+        return virtual;
+      }
+    }
+    // a full queue makes the acceptor run the connection itself, which stops
+    // it from accepting more until a worker frees up
+    return new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(poolSize * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /**
+   * Creates the executor the nio engine runs routes on. Unlike the
+   * connection executor it never runs a task on the submitting thread, that
+   * is an event loop which must not block. Its queue is unbounded, but a
+   * connection has at most one request dispatched at a time, so it never
+   * holds more tasks than there are open connections
+   * @param poolSize number of platform threads if there are no virtual threads
+   */
+  static ExecutorService newWorkerExecutor(int poolSize) {
+    ExecutorService virtual = virtualThreads(poolSize);
+    return virtual != null ? virtual : Executors.newFixedThreadPool(poolSize);
+  }
+
+  /**
+   * @return a virtual thread per task executor, null before Java 21
+   */
+  private static ExecutorService virtualThreads(int poolSize) {
+    // looked up reflectively so the server still builds and runs on JVMs
+    // without virtual threads (before Java 21)
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      Log.info("Handling connections on virtual threads");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      // the default mode, nobody should think they got what they asked for
+      Log.warn("Virtual threads need Java 21 or later, using a pool of " + poolSize + " threads instead");
+      return null;
+    }
+  }
+
+  /**
+   * Serves requests from the socket until the client or the keep-alive limits
+   * end the connection, then closes it
+   * @param sock accepted client socket
+   * @param acceptedAt System.nanoTime() when it was accepted
+   */
+  void handleConnection(Socket sock, long acceptedAt) {
+    Metrics.ACCEPT.record(System.nanoTime() - acceptedAt);
+    boolean inRequest = false;
+    Pipeline ahead = null;
+    // closing the socket makes the blocked read or write fail
+    Deadline deadline = new Deadline(() -> {
+      try {
         sock.close();
+      } catch (IOException e) {
+        // closed anyway
+      }
+    });
+    try {
+      InputStream in = sock.getInputStream();
+      // not buffered, ResponseWriter brings its own buffer
+      OutputStream out = deadline.guard(sock.getOutputStream());
+
+      // one buffer and parser for all requests on this connection
+      ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER.get());
+      RequestParser request = new RequestParser();
+
+      int served = 0;
+      boolean keepAlive = true;
+      while (keepAlive) {
+        try {
+          buf = readRequest(in, buf, request, deadline);
+        } catch (RequestParser.BadRequest e) {
+          byte[] error = errorResponse(e.status, e.getMessage());
+          out.write(error);
+          out.flush();
+          Metrics.response(ResponseWriter.statusCode(e.status), error.length);
+          break;
+        }
+        if (buf == null) {
+          break;
+        }
+        long started = System.nanoTime();
+        Metrics.requestStarted();
+        inRequest = true;
+        served++;
+        keepAlive = isKeepAlive(request) && served < MAX_REQUESTS_PER_CONNECTION.get();
+        if (keepAlive && Pipeline.MAX_DEPTH.get() > 1) {
+          // take what the client already sent too, without waiting for more
+          int available = Math.min(in.available(), buf.remaining());
+          if (available > 0) {
+            int n = in.read(buf.array(), buf.arrayOffset() + buf.position(), available);
+            Metrics.read(n);
+            buf.position(buf.position() + n);
+          }
+          if (buf.position() > request.headerLength()) {
+            // requests pipelined behind this one start now
+            ahead = Pipeline.gather(this, buf, request, served, executor);
+            served += ahead.size();
+          }
+        }
+        File file = fileTarget(request);
+        if (file != null) {
+          // header and body go straight to the channel, nothing is buffered
+          try (StaticFiles.Reply reply = StaticFiles.prepare(file, request, keepAlive)) {
+            long handled = System.nanoTime();
+            Metrics.HANDLE.record(handled - started);
+            sendFile(reply, sock, deadline);
+            long done = System.nanoTime();
+            Metrics.WRITE.record(done - handled);
+            Metrics.requestDone("static", reply.status, reply.length(), done - started);
+          }
+        } else {
+          ResponseWriter response = new ResponseWriter(out, request, keepAlive);
+          try {
+            await(respond(request, response));
+            long handled = System.nanoTime();
+            Metrics.HANDLE.record(handled - started);
+            response.finish();
+            long done = System.nanoTime();
+            Metrics.WRITE.record(done - handled);
+            Metrics.requestDone(response.route(), response.statusCode(), response.bytesSent(), done - started);
+          } finally {
+            response.abandon();
+          }
+          keepAlive = response.keepAlive();
+        }
+        inRequest = false;
+        request.consume(buf);
+        if (ahead != null) {
+          ahead.consume(buf);
+          keepAlive = keepAlive && ahead.writeTo(sock, out, deadline);
+          ahead.abort();
+          ahead = null;
+        }
       }
     } catch (IOException e) {
-      e.printStackTrace();
+      // mostly clients going away mid response, or a deadline that passed
+      if (deadline.expired() == null) {
+        Log.debug("Connection ended: " + e);
+      }
     } finally {
-      if (sock != null) {
-        try {
-          server.close();
-        } catch (IOException e) {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
+      deadline.cancel();
+      if (inRequest) {
+        Metrics.requestAborted();
+      }
+      if (ahead != null) {
+        ahead.abort();
+      }
+      Metrics.connectionClosed();
+      try {
+        sock.close();
+      } catch (IOException e) {
+        Log.debug("Closing connection failed: " + e);
+      }
+    }
+  }
+
+  /**
+   * Reads from the stream until the parser has a complete request header.
+   * Bytes after the header stay in the buffer for the next request.
+   * @param in socket input stream
+   * @param buf connection buffer, in write mode
+   * @param request parser for this connection
+   * @param deadline the connection's deadline, idle until the request
+   *        starts and header from then on, cancelled once it is complete
+   * @return the buffer (possibly grown) or null if the client closed the
+   *         connection between requests
+   * @throws IOException if reading fails, the client stops mid-header or
+   *         the request is malformed (RequestParser.BadRequest)
+   */
+  static ByteBuffer readRequest(InputStream in, ByteBuffer buf, RequestParser request, Deadline deadline)
+      throws IOException {
+    // only the parsing is timed, not the waiting for the client
+    long parseNanos = 0;
+    while (true) {
+      long start = System.nanoTime();
+      boolean complete = request.parse(buf);
+      parseNanos += System.nanoTime() - start;
+      if (complete) {
+        break;
+      }
+      buf = RequestParser.ensureRoom(buf);
+      if (deadline.armed() == null) {
+        deadline.arm(buf.position() == 0 ? Deadline.Kind.IDLE : Deadline.Kind.HEADER);
+      }
+      int n = in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+      if (n < 0) {
+        if (buf.position() == 0) {
+          return null;
         }
+        throw new EOFException("Connection closed in the middle of a request");
+      }
+      Metrics.read(n);
+      buf.position(buf.position() + n);
+      if (deadline.armed() == Deadline.Kind.IDLE) {
+        // the request has started, the whole header has to arrive in time
+        deadline.arm(Deadline.Kind.HEADER);
+      }
+    }
+    deadline.cancel();
+    Metrics.PARSE.record(parseNanos);
+    return buf;
+  }
+
+  /**
+   * Writes a file reply to a blocking socket under the write deadline
+   */
+  static void sendFile(StaticFiles.Reply reply, Socket sock, Deadline deadline) throws IOException {
+    deadline.arm(Deadline.Kind.WRITE, reply::written);
+    try {
+      while (!reply.writeTo(sock.getChannel())) {
+        // a blocking channel only comes back short if the transfer was
+        // cut into pieces, keep going
       }
+    } finally {
+      deadline.cancel();
     }
   }
 
+  /**
+   * Finds the file a request asks for, so it can be streamed instead of going
+   * through createResponse. That is the target of "/file/..." or a file
+   * inside the www/ docroot, e.g. "/index.html". The routes are looked up
+   * first: a path they answer never costs a file system lookup, and a file
+   * in the docroot can't hide a route of the same name.
+   * @param request parsed request
+   * @return the existing regular file or null if this is not a file request
+   */
+  File fileTarget(RequestParser request) {
+    if (!request.method().equalsIgnoreCase("GET") || request.query().length() > 0
+        || request.path().length() < 2 || request.path().charAt(0) != '/') {
+      return null;
+    }
+    Router.Route route = routes.find(request.path());
+    String path = request.path().toString().substring(1);
+    if (route != null) {
+      if (!route.pattern.equals("/file/")) {
+        return null;
+      }
+      File file = new File(path.substring("file/".length()));
+      return file.isFile() ? file : null;
+    }
+    if (path.endsWith("/")) {
+      // names a directory, the canonical path would drop the slash
+      return null;
+    }
+    try {
+      File file = new File(DOCROOT, path).getCanonicalFile();
+      // never leave the docroot with "../"
+      if (file.isFile() && file.toPath().startsWith(DOCROOT.toPath())) {
+        return file;
+      }
+    } catch (IOException e) {
+      // not a usable path
+    }
+    return null;
+  }
+
+  /** directory the pages and docroot files are served from */
+  static final File DOCROOT = docroot(System.getProperty("funHttpServer.docroot", "www"));
+
+  /** requests served on one connection before it is closed */
+  static final Config.Setting<Integer> MAX_REQUESTS_PER_CONNECTION = Config.intSetting("maxRequests", 100);
+
+  /** how long a kept-alive connection may wait for its next request, see Deadline */
+  static final Config.Setting<Integer> IDLE_TIMEOUT_MILLIS = Config.intSetting("idleTimeout", 5000);
+
+  /** initial size of a connection's request buffer, it grows up to MAX_HEADER_BYTES */
+  static final Config.Setting<Integer> READ_BUFFER = Config.intSetting("readBuffer", 2048);
+
+  /** largest request header we accept */
+  static final int MAX_HEADER_BYTES = 16 * 1024;
+
+  private static File docroot(String path) {
+    try {
+      return new File(path).getCanonicalFile();
+    } catch (IOException e) {
+      return new File(path).getAbsoluteFile();
+    }
+  }
+
+  /**
+   * Decides whether the connection may stay open after answering this request
+   * @param request parsed request
+   * @return true for HTTP/1.1 without "Connection: close" or HTTP/1.0 with
+   *         "Connection: keep-alive", as long as the request has no body
+   */
+  static boolean isKeepAlive(RequestParser request) {
+    if (request.header("Content-Length") != null || request.header("Transfer-Encoding") != null) {
+      // we never read request bodies, so the stream can't be reused safely
+      return false;
+    }
+    RequestParser.Slice connection = request.header("Connection");
+    if (request.version().equalsIgnoreCase("HTTP/1.1")) {
+      return connection == null || !connection.containsToken("close");
+    }
+    return connection != null && connection.containsToken("keep-alive");
+  }
+
+  /**
+   * Builds a complete error response for a request that could not be parsed
+   * @param status status code and reason
+   * @param message shown in the body
+   * @return the response bytes, the connection is closed afterwards
+   */
+  static byte[] errorResponse(String status, String message) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    ResponseWriter response = new ResponseWriter(bytes, null, false);
+    try {
+      response.status(status);
+      response.write("<html>" + status + ": " + message + "</html>");
+      response.finish();
+    } catch (IOException e) {
+      // can't happen when writing to memory
+    }
+    return bytes.toByteArray();
+  }
+
   /**
    * Used in the "/random" endpoint
    */
@@ -86,465 +528,668 @@ class WebServer {
 
   private Random random = new Random();
 
+  /**
+   * Docroot pages kept in memory, budget set by funHttpServer.cacheBytes
+   */
+  static final Config.Setting<Long> CACHE_BYTES = Config.longSetting("cacheBytes", 32L * 1024 * 1024);
+  static final FileCache fileCache = new FileCache(CACHE_BYTES.get());
+
+  /**
+   * /file/ targets outside the docroot, kept for their compressed copies
+   * under their own budget (funHttpServer.fileRouteCacheBytes), so they
+   * can't push the docroot pages out
+   */
+  static final Config.Setting<Long> FILE_ROUTE_CACHE_BYTES =
+      Config.longSetting("fileRouteCacheBytes", 8L * 1024 * 1024);
+  static final FileCache fileRouteCache = new FileCache(FILE_ROUTE_CACHE_BYTES.get());
+
+  /**
+   * Compiled templates and rendered pages of the docroot, dropped when it changes
+   */
+  static final TemplateCache templates = new TemplateCache(DOCROOT);
+
+  /**
+   * Pooled non-blocking client for /github. The base URL can point at a stub
+   * server (funHttpServer.githubUrl), timeouts are in milliseconds
+   */
+  static final Config.Setting<Long> UPSTREAM_TIMEOUT = Config.longSetting("upstreamTimeout", 20000);
+  static final UpstreamClient githubApi = new UpstreamClient(
+      System.getProperty("funHttpServer.githubUrl", "https://api.github.com/"),
+      Long.getLong("funHttpServer.upstreamConnectTimeout", 5000),
+      UPSTREAM_TIMEOUT.get());
+
+  /**
+   * GitHub answers by normalized query, shared by concurrent requests
+   */
+  static final Config.Setting<Integer> GITHUB_CACHE_ENTRIES = Config.intSetting("githubCacheEntries", 1000);
+  static final Config.Setting<Long> GITHUB_CACHE_TTL = Config.longSetting("githubCacheTtl", 60000);
+  static final Config.Setting<Boolean> GITHUB_STALE_WHILE_REVALIDATE =
+      Config.booleanSetting("githubStaleWhileRevalidate", false);
+  static final UpstreamCache githubCache = new UpstreamCache(
+      GITHUB_CACHE_ENTRIES.get(), GITHUB_CACHE_TTL.get(), GITHUB_STALE_WHILE_REVALIDATE.get());
+
+  static {
+    // the caches and the client follow changes of the config file
+    CACHE_BYTES.onChange(fileCache::budget);
+    FILE_ROUTE_CACHE_BYTES.onChange(fileRouteCache::budget);
+    UPSTREAM_TIMEOUT.onChange(githubApi::timeout);
+    GITHUB_CACHE_ENTRIES.onChange(githubCache::maxEntries);
+    GITHUB_CACHE_TTL.onChange(githubCache::ttl);
+    GITHUB_STALE_WHILE_REVALIDATE.onChange(githubCache::staleWhileRevalidate);
+  }
+
   /**
    * Reads in socket stream and generates a response
    * @param inStream HTTP input stream from socket
    * @return the byte encoded HTTP response
    */
   public byte[] createResponse(InputStream inStream) {
+    RequestParser request = new RequestParser();
+    try {
+      ByteBuffer buf = ByteBuffer.allocate(2048);
+      while (!request.parse(buf)) {
+        buf = RequestParser.ensureRoom(buf);
+        int n = inStream.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        if (n < 0) {
+          // no blank line, answer what we have if the request line is there
+          if (!request.hasRequestLine()) {
+            request.reset();
+          }
+          break;
+        }
+        buf.position(buf.position() + n);
+      }
+    } catch (RequestParser.BadRequest e) {
+      return errorResponse(e.status, e.getMessage());
+    } catch (IOException e) {
+      Log.warn("Reading the request failed", e);
+      return errorResponse("500 Internal Server Error", "ERROR: " + e.getMessage());
+    }
+    return createResponse(request);
+  }
+
+  /**
+   * Generates the complete response for a parsed request in memory
+   * @param request parsed request header, its views must stay valid during the call
+   * @return the byte encoded HTTP response, with "Connection: close"
+   */
+  public byte[] createResponse(RequestParser request) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ResponseWriter response = new ResponseWriter(bytes, request, false);
+    try {
+      await(respond(request, response));
+      response.finish();
+    } catch (IOException e) {
+      // only the route can fail, writing to memory doesn't
+      Log.warn("Route failed", e);
+    } finally {
+      response.abandon();
+    }
+    return bytes.toByteArray();
+  }
 
-    byte[] response = null;
-    BufferedReader in = null;
+  /**
+   * Writes the response for a parsed request
+   * @param request parsed request header, its views must stay valid until
+   *        the returned future completes
+   * @param response writer for the client, finished by the caller once the
+   *        returned future completes
+   * @return completes when the route has written the response, right away
+   *         unless the route went asynchronous. Completes exceptionally if
+   *         writing to the client fails, or the route fails after part of
+   *         the response was already sent
+   */
+  CompletableFuture<Void> respond(RequestParser request, ResponseWriter response) {
+    if (Log.enabled(Log.Level.INFO)) {
+      Log.info("Received: " + (request.hasRequestLine()
+          ? request.method() + " " + request.target() + " " + request.version() : null));
+    }
 
     try {
+      // Generate an appropriate response to the user
+      if (!request.hasRequestLine() || !request.method().equalsIgnoreCase("GET")) {
+        response.status("405 Method Not Allowed");
+        response.header("Allow", "GET");
+        response.write("<html>Illegal request: no GET</html>");
+        return CompletableFuture.completedFuture(null);
+      }
 
-      // Read from socket's input stream. Must use an
-      // InputStreamReader to bridge from streams to a reader
-      in = new BufferedReader(new InputStreamReader(inStream, "UTF-8"));
+      // routes only look at the path, the query is for the handler
+      Router.Route route = routes.find(request.path());
+      if (route == null) {
+        notFound(request, response);
+      } else {
+        response.route(route.pattern);
+        route.handler.handle(request, response);
+      }
+    } catch (Throwable e) {
+      // a broken route must still complete the future, or the connection
+      // waits for it forever
+      return recover(response, e);
+    }
 
-      // Get header and save the request from the GET line:
-      // example GET format: GET /index.html HTTP/1.1
+    CompletableFuture<Void> async = response.async();
+    if (async == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return async.handle((done, error) -> error == null
+        ? CompletableFuture.<Void>completedFuture(null)
+        : recover(response, error)).thenCompose(f -> f);
+  }
 
-      String request = null;
+  /**
+   * Turns a failed route into a 500 if nothing has been sent yet
+   */
+  private static CompletableFuture<Void> recover(ResponseWriter response, Throwable error) {
+    if (error instanceof CompletionException && error.getCause() != null) {
+      error = error.getCause();
+    }
+    if (response.committed()) {
+      // too late to tell the client, the connection gets dropped
+      return CompletableFuture.failedFuture(error);
+    }
+    Log.error("Route failed, answering 500", error);
+    try {
+      response.reset();
+      if (!(error instanceof IOException)) {
+        // a bug rather than e.g. an upstream failure, don't trust the connection
+        response.closeConnection();
+      }
+      response.status("500 Internal Server Error");
+      response.write("<html>ERROR: " + error.getMessage() + "</html>");
+      return CompletableFuture.completedFuture(null);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
 
-      boolean done = false;
-      while (!done) {
-        String line = in.readLine();
+  /**
+   * Waits for a response started by respond to be written
+   * @throws IOException the reason it failed
+   */
+  static void await(CompletableFuture<Void> written) throws IOException {
+    try {
+      written.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
 
-        System.out.println("Received: " + line);
+  /**
+   * Maps request paths to the handlers below
+   */
+  private final Router routes = buildRoutes();
+
+  private Router buildRoutes() {
+    Router router = new Router();
+    router.exact("/", this::root);
+    router.exact("/json", this::json);
+    router.exact("/random", this::random);
+    router.exact("/cachestats", this::cachestats);
+    router.exact("/metrics", this::metrics);
+    router.prefix("/file/", this::file);
+    router.exact("/repeat", this::repeat);
+    router.exact("/multiply", this::multiply);
+    router.exact("/profile", this::profile);
+    router.exact("/github", this::github);
+    return router;
+  }
 
-        // find end of header("\n\n")
-        if (line == null || line.equals(""))
-          done = true;
-        // parse GET format ("GET <path> HTTP/1.1")
-        else if (line.startsWith("GET")) {
-          int firstSpace = line.indexOf(" ");
-          int secondSpace = line.indexOf(" ", firstSpace + 1);
+  /**
+   * / shows the default directory page
+   */
+  private void root(RequestParser request, ResponseWriter response) throws IOException {
+    // shows the default directory page
 
-          // extract the request, basically everything after the GET up to HTTP/1.1
-          request = line.substring(firstSpace + 2, secondSpace);
-        }
+    // root.html with the file list filled in, rendered once per change of www/
+    String page = templates.page("root", this::renderRootPage);
 
-      }
-      System.out.println("FINISHED PARSING HEADER\n");
+    // Generate response
+    response.status("200 OK");
+    response.header("Content-Type", "text/html; charset=utf-8");
+    response.write(page);
+  }
 
-      // Generate an appropriate response to the user
-      if (request == null) {
-        response = "<html>Illegal request: no GET</html>".getBytes();
-      } else {
-        // create output buffer
-        StringBuilder builder = new StringBuilder();
-        // NOTE: output from buffer is at the end
+  /**
+   * /json shows the JSON of a random image
+   */
+  private void json(RequestParser request, ResponseWriter response) throws IOException {
+    // shows the JSON of a random image and sets the header name for that image
+
+    // pick a index from the map
+    int index = random.nextInt(_images.size());
+
+    // pull out the information
+    String header = (String) _images.keySet().toArray()[index];
+    String url = _images.get(header);
+
+    // Generate response
+    response.status("200 OK");
+    response.header("Content-Type", "application/json; charset=utf-8");
+    response.write("{");
+    response.write("\"header\":\"").write(header).write("\",");
+    response.write("\"image\":\"").write(url).write("\"");
+    response.write("}");
+  }
 
-        if (request.length() == 0) {
-          // shows the default directory page
+  /**
+   * /random shows the random image page
+   */
+  private void random(RequestParser request, ResponseWriter response) throws IOException {
+    // opens the random image page
 
-          // opens the root.html file
-          String page = new String(readFileInBytes(new File("www/root.html")));
-          // performs a template replacement in the page
-          page = page.replace("${links}", buildFileList());
+    // open the index.html
+    File file = new File(DOCROOT, "index.html");
 
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(page);
+    // Generate response
+    response.status("200 OK");
+    response.header("Content-Type", "text/html; charset=utf-8");
+    response.write(fileCache.get(file));
+  }
 
+  /**
+   * /cachestats shows the counters of the docroot file cache
+   */
+  private void cachestats(RequestParser request, ResponseWriter response) throws IOException {
+    // counters of the docroot file cache and the GitHub answer cache
+
+    response.status("200 OK");
+    response.header("Content-Type", "text/plain; charset=utf-8");
+    response.write("files: " + fileCache.stats() + "\n");
+    response.write("file route: " + fileRouteCache.stats() + "\n");
+    response.write("github: " + githubCache.stats() + "\n");
+  }
 
-	  builder.append("\n");
-	  builder.append("You can enter profile? as an option, copy paste the below example");
-	  builder.append("\n");
-	  builder.append("/profile?Name=asdf&Birthday=01/01/1900");
+  /**
+   * /metrics shows counters and latency histograms for Prometheus
+   */
+  private void metrics(RequestParser request, ResponseWriter response) throws IOException {
+    response.status("200 OK");
+    response.header("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+    response.write(Metrics.prometheus());
+  }
 
+  /**
+   * /file/... shows the raw file, used when it can't be streamed
+   */
+  private void file(RequestParser request, ResponseWriter response) throws IOException {
+    // tries to find the specified file and shows it or shows an error
+
+    // take the path and clean it. try to open the file
+    File file = new File(request.path().toString().substring("/file/".length()));
+
+    // Generate response
+    if (file.exists()) { // success
+      response.status("200 OK");
+      response.header("Content-Type", "text/html; charset=utf-8");
+      response.write(readFileInBytes(file));
+    } else { // failure
+      response.status("404 Not Found");
+      response.header("Content-Type", "text/html; charset=utf-8");
+      response.write("File not found: " + file);
+    }
+  }
 
-	  builder.append("\n");
-	  builder.append("You can enter repeat? as an option, copy paste the below example");
-	  builder.append("\n");
-	  builder.append("/repeat?string=Test&num=50");
+  /**
+   * /repeat?string=X&num=N repeats the string num times
+   */
+  private void repeat(RequestParser request, ResponseWriter response) throws IOException {
+    // set once the input is valid
+    String word = null;
+    int count = 0;
+    try {
 
+      Map<String, String> query_pairs = new LinkedHashMap<String, String>();
+      // extract path parameters
+      query_pairs = splitQuery(request.query().toString());
 
-          builder.append("\n");
-          builder.append(" 5) /github?query=users/amehlhase316/repos (or other GitHub repo owners) will lead to receiving JSON which will for now only be printed in the console. See the todo below");
-          builder.append("\n");
+      String s = "";
+      int num = 0;
 
+      try {
+        s = query_pairs.get("string");
+      }
+      catch (Exception e) {
+        response.status("400 Bad Request");
+        response.write("400 Bad Request The server cannot or will not process the request due to something that is perceived to be a client error (e.g., malformed request syntax, invalid request message framing, or deceptive request routing).");
+        response.write("\n");
+        response.write("Please enter a valid input for string");
+      }
 
+      try {
+        num = Integer.parseInt(query_pairs.get("num"));
+      }
+      catch (Exception e) {
+        response.status("400 Bad Request");
+        response.write("400 Bad Request The server cannot or will not process the request due to something that is perceived to be a client error (e.g., malformed request syntax, invalid request message framing, or deceptive request routing).");
+        response.write("\n");
+        response.write("Please enter a valid input for num");
+        Log.debug("Please enter a valid input for num");
+      }
 
-        } else if (request.equalsIgnoreCase("json")) {
-          // shows the JSON of a random image and sets the header name for that image
+      Log.debug("String: " + s + " Num: " + num);
 
-          // pick a index from the map
-          int index = random.nextInt(_images.size());
+      if ( (s == null) || (s == "") )
+      {
+        response.status("400 Bad Request");
+        response.write("\n");
+        response.write("400 Bad Request The server cannot or will not process the request due to something that is perceived to be a client error (e.g., malformed request syntax, invalid request message framing, or deceptive request routing).");
 
-          // pull out the information
-          String header = (String) _images.keySet().toArray()[index];
-          String url = _images.get(header);
+        response.write("Please enter a valid string");
+      }
 
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: application/json; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("{");
-          builder.append("\"header\":\"").append(header).append("\",");
-          builder.append("\"image\":\"").append(url).append("\"");
-          builder.append("}");
+      if (num == 0)
+      {
+        response.status("400 Bad Request");
+        response.write("\n");
+        response.write("400 Bad Request The server cannot or will not process the request due to something that is perceived to be a client error (e.g., malformed request syntax, invalid request message framing, or deceptive request routing).");
 
-        } else if (request.equalsIgnoreCase("random")) {
-          // opens the random image page
+        response.write("Please enter a valid number");
+      }
 
-          // open the index.html
-          File file = new File("www/index.html");
+      if ( (s != null) && (num != 0) )
+      {
+        word = s;
+        count = num;
+      }
 
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(new String(readFileInBytes(file)));
+    }
+    catch (Exception e)
+    {
+      response.status("400 Bad Request");
+      response.write("\n");
+      response.write("Client Error. Error Code 400\n");
+      response.write("Please enter a valid input. Format /repeat?word=anyWord&num=anyNumber");
 
-        } else if (request.contains("file/")) {
-          // tries to find the specified file and shows it or shows an error
+      Log.debug("Invalid /repeat request: " + e);
 
-          // take the path and clean it. try to open the file
-          File file = new File(request.replace("file/", ""));
+    }
 
-          // Generate response
-          if (file.exists()) { // success
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append(new String(readFileInBytes(file)));
-          } else { // failure
-            builder.append("HTTP/1.1 404 Not Found\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("File not found: " + file);
-          }
-        } 
-	
-	else if (request.contains("repeat?")) {
-
-		try {
-
-			Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-			 // extract path parameters
-			 query_pairs = splitQuery(request.replace("repeat?", ""));
-			
-			
-			 String s = "";
-			 int num = 0;
-
-			try {			
-			 s = query_pairs.get("string");
-			}
-			catch (Exception e) {
-			builder.append("400 Bad Request The server cannot or will not process the request due to something that is perceived to be a client error (e.g., malformed request syntax, invalid request message framing, or deceptive request routing).");
-			builder.append("\n");
-			builder.append("Please enter a valid input for string");
-			}
-
-			try {
-			 num = Integer.parseInt(query_pairs.get("num"));
-			}
-			catch (Exception e) {
-			builder.append("400 Bad Request The server cannot or will not process the request due to something that is perceived to be a client error (e.g., malformed request syntax, invalid request message framing, or deceptive request routing).");
-			builder.append("\n");
-			builder.append("Please enter a valid input for num");
-			System.out.println("Please enter a valid input for num");
-			}
-
-			System.out.println("String: " + s);
-			System.out.println("Num: " + num);
-
-			if ( (s == null) || (s == "") )
-			{
-			builder.append("\n");
-			builder.append("400 Bad Request The server cannot or will not process the request due to something that is perceived to be a client error (e.g., malformed request syntax, invalid request message framing, or deceptive request routing).");
-
-			builder.append("Please enter a valid string");
-			}
-			
-			if (num == 0)
-			{
-			builder.append("\n");
-			builder.append("400 Bad Request The server cannot or will not process the request due to something that is perceived to be a client error (e.g., malformed request syntax, invalid request message framing, or deceptive request routing).");
-
-			builder.append("Please enter a valid number");
-			}
-			
-			 
-			if ( (s != null) && (num != 0) )
-			{
-
-
-			builder.append("200 OK The request succeeded. The result meaning of success depends on the HTTP method: GET: The resource has been fetched and transmitted in the message body.");
-			 // Generate response
-			 for (int i = 0; i < num; i ++)
-			 {
-				System.out.println(s + " ");	 
-				 builder.append(" " + s);
-				 builder.append(" ");
-			 }
-
-			}
-		
-			
-			 }
-			 catch (Exception e)
-			 {
-			 builder.append("\n");
-			 builder.append("Client Error. Error Code 400\n");
-			 builder.append("Please enter a valid input. Format /repeat?word=anyWord&num=anyNumber");
-			
-			 System.out.println("Caught an error");
-			
-			 }
-			
-			
-			}
-	
-	
-	else if (request.contains("multiply?")) {
-          // This multiplies two numbers, there is NO error handling, so when
-          // wrong data is given this just crashes
-
-	  
-	try {
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          // extract path parameters
-          query_pairs = splitQuery(request.replace("multiply?", ""));
-	
-
-          // extract required fields from parameters
-
-	  int num1 = 0;
-	  int num2 = 0;
-	 
-
-	 
-       	  num1 = Integer.parseInt(query_pairs.get("num1"));
-
-          num2 = Integer.parseInt(query_pairs.get("num2"));
-
-	  System.out.println(query_pairs.get("num1").length() );
-          // do math
-          Integer result = num1 * num2;
-
-          // Generate response
-
-	builder.append("\n");	
-	 builder.append ("200 OK The request succeeded. The result meaning of success depends on the HTTP method: GET: The resource has been fetched and transmitted in the message body.");
-	builder.append("\n");
-          builder.append("Result is: " + result );
-}
+    if (word != null) {
+      // Generate response. Streamed: the buffer goes out whenever it is full,
+      // blocking while the client is behind, so memory stays the same for
+      // any num. A client that hangs up makes the write throw, which ends
+      // the loop instead of generating the rest for nobody.
+      response.write("200 OK The request succeeded. The result meaning of success depends on the HTTP method: GET: The resource has been fetched and transmitted in the message body.");
+      byte[] piece = (" " + word + " ").getBytes(StandardCharsets.UTF_8);
+      for (int i = 0; i < count; i++) {
+        response.write(piece);
+      }
+    }
+  }
+
+  /**
+   * /multiply?num1=X&num2=Y multiplies the two numbers
+   */
+  private void multiply(RequestParser request, ResponseWriter response) throws IOException {
+    // This multiplies two numbers, there is NO error handling, so when
+    // wrong data is given this just crashes
 
-	catch (Exception e) {
-	
-	builder.append ("400 Bad Request The server cannot or will not process the request due to something that is perceived to be a client error (e.g., malformed request syntax, invalid request message framing, or deceptive request routing).");
-	builder.append("\n");
-	builder.append("Please enter valid input in the future");
-	}
+    try {
+      Map<String, String> query_pairs = new LinkedHashMap<String, String>();
+      // extract path parameters
+      query_pairs = splitQuery(request.query().toString());
 
+      // extract required fields from parameters
 
-          // TODO: Include error handling here with a correct error code and
-          // a response that makes sense
-}
+      int num1 = 0;
+      int num2 = 0;
 
+      num1 = Integer.parseInt(query_pairs.get("num1"));
 
-	else if (request.contains("profile?")) {
-
-		try {
-
-		   	Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-			 // extract path parameters
-			 query_pairs = splitQuery(request.replace("profile?", ""));
-			
-			
-			 String Name = "";
-			 String  Birthday = "";
-			
-			 Name = query_pairs.get("Name");
-			 Birthday = query_pairs.get("Birthday");
-			
-
-			 if ((Name.equals("") || (Birthday.equals(""))))
-			 {
-				
-				 builder.append("Please enter a valid data");
-
-			 }
-
-			 else 
-			 {
-			 // Generate response
-			 builder.append("HTTP/1.1 200 OK\n");
-			 builder.append("Content-Type: text/html; charset=utf-8\n");
-			 builder.append("\n");
-			
-			 builder.append("\n");
-			 builder.append("Your Name is: " + Name);
-			 builder.append("\n");
-			 builder.append("Your Birthday is: " + Birthday);
-			 builder.append("\n");
-			 }
-			
-			 }
-			 catch (Exception e)
-			 {
-			
-			 builder.append("HTTP/1.1 200 OK\n");
-			 builder.append("Content-Type: text/html; charset=utf-8\n");
-			 builder.append("\n");
-			 builder.append("\n");
-			 builder.append("Client Error. Error Code 400\n");
-			 builder.append("\n");
-			 builder.append("Please enter a valid input. Format: profile?Name=X&Birthday=Y \n");
-			
-			 System.out.println("Caught an error");
-			
-			 }
-			
-		        
-			 }
-	
-	else if (request.contains("github?")) {
-          // pulls the query from the request and runs it with GitHub's REST API
-          // check out https://docs.github.com/rest/reference/
-          //
-          // HINT: REST is organized by nesting topics. Figure out the biggest one first,
-          //     then drill down to what you care about
-          // "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
-          //     "/repos/OWNERNAME/REPONAME/contributors"
-
-	  try {
-
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-
-          query_pairs = splitQuery(request.replace("github?", ""));
-	
-          String json = fetchURL("https://api.github.com/" + query_pairs.get("query"));
-	
-          System.out.println(json);
-	
-
-
-	  String n = "";
-
-	  for (int i = 0; i < json.length(); i ++)
-			  {				  
-				  if ((json.charAt(i)=='f') && (json.charAt(i+1)=='u') &&(json.charAt(i+2)=='l')&&(json.charAt(i+3)=='l')&&(json.charAt(i+4)=='_')
-			  && (json.charAt(i+5)=='n') && (json.charAt(i+6)=='a') &&(json.charAt(i+7)=='m')&&(json.charAt(i+8)=='e') &&(json.charAt(i+9)=='"') && 
-			  (json.charAt(i+10)==':')&&(json.charAt(i+11)=='"'))
-			{	  
-
-				  
-					  i = i + 12;
-					  while (json.charAt(i)!='"')
-					  {
-						  n += json.charAt(i);
-						  i++;
-					  }
-				  n+=' ';
-
-
-			  }
-
-			 }
-
-	   System.out.println("should be printing n " + n);
-
-
-	   String r = "";
-	   for (int i = 0; i < json.length(); i ++)
-	   {
-		   if ((json.charAt(i)=='"') && (json.charAt(i+1)=='i') &&(json.charAt(i+2)=='d') && (json.charAt(i+3)=='"') && (json.charAt(i+4)==':'))
-		   {
-			   i = i + 5;
-			   while (json.charAt(i)!=',')
-			   {r += json.charAt(i);
-				   i++;
-
-			   }
-			   r+=' ';
-
-		   }
-
-	   }
-
-	   System.out.println("");
-	   System.out.println("should be printing r " + r);
-
-
-	   String id = "";
-	   for (int i = 0; i < json.length(); i ++)
-	   {
-		   if ((json.charAt(i)=='"') && (json.charAt(i+1)=='l') &&(json.charAt(i+2)=='o')&&(json.charAt(i+3)=='g')&&(json.charAt(i+4)=='i') && 
-				   (json.charAt(i+5)=='n') && (json.charAt(i+6)=='"') &&(json.charAt(i+7)==':')&&(json.charAt(i+8)=='"'))
-		   {
-			   i = i + 9;
-			   while ((json.charAt(i)!='"')&&(json.charAt(i)!=','))
-	         	   {id += json.charAt(i);
-				   i++;
-			   }
-			   id += ' ';
-		   }
-
-	   }
+      num2 = Integer.parseInt(query_pairs.get("num2"));
 
-	   System.out.println("");
-	   System.out.println("should be printing id " + id);
+      // do math
+      Integer result = num1 * num2;
 
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("Check the todos mentioned in the Java source file");
+      // Generate response
 
-	  builder.append("<br>");
+      response.write("\n");
+      response.write("200 OK The request succeeded. The result meaning of success depends on the HTTP method: GET: The resource has been fetched and transmitted in the message body.");
+      response.write("\n");
+      response.write("Result is: " + result );
+    }
 
-	  builder.append("<br>");
-	  builder.append("Full Repo Names: ");
-	  builder.append(n);
-	  builder.append("<br>");
+    catch (Exception e) {
 
-	  builder.append("<br>");
-	  builder.append("Repo IDS: ");
-	  builder.append(id);
-	  builder.append("<br>");
+      response.status("400 Bad Request");
+      response.write("400 Bad Request The server cannot or will not process the request due to something that is perceived to be a client error (e.g., malformed request syntax, invalid request message framing, or deceptive request routing).");
+      response.write("\n");
+      response.write("Please enter valid input in the future");
+    }
 
-	  builder.append("<br>");
-	  builder.append("Login Owner Of Each Repo: ");
-	  builder.append(r);
-	  builder.append("<br>");
+    // TODO: Include error handling here with a correct error code and
+    // a response that makes sense
+  }
 
+  /**
+   * /profile?Name=X&Birthday=Y shows the name and birthday
+   */
+  private void profile(RequestParser request, ResponseWriter response) throws IOException {
+    try {
 
-          // TODO: Parse the JSON returned by your fetch and create an appropriate
-          // response based on what the assignment document asks for
+      Map<String, String> query_pairs = new LinkedHashMap<String, String>();
+      // extract path parameters
+      query_pairs = splitQuery(request.query().toString());
 
-	  }
+      String Name = "";
+      String  Birthday = "";
 
-	  catch(Exception e)
-	  {
+      Name = query_pairs.get("Name");
+      Birthday = query_pairs.get("Birthday");
 
-	  }
+      if ((Name.equals("") || (Birthday.equals(""))))
+      {
+        response.status("400 Bad Request");
 
+        response.write("Please enter a valid data");
 
+      }
 
-        } else {
-          // if the request is not recognized at all
+      else
+      {
+        // Generate response
+        response.status("200 OK");
+        response.header("Content-Type", "text/html; charset=utf-8");
+
+        response.write("\n");
+        response.write("Your Name is: " + Name);
+        response.write("\n");
+        response.write("Your Birthday is: " + Birthday);
+        response.write("\n");
+      }
 
-          builder.append("HTTP/1.1 400 Bad Request\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("I am not sure what you want me to do...");
+    }
+    catch (Exception e)
+    {
+
+      response.status("400 Bad Request");
+      response.header("Content-Type", "text/html; charset=utf-8");
+      response.write("\n");
+      response.write("Client Error. Error Code 400\n");
+      response.write("\n");
+      response.write("Please enter a valid input. Format: profile?Name=X&Birthday=Y \n");
+
+      Log.debug("Invalid /profile request: " + e);
+
+    }
+  }
+
+  /**
+   * /github?query=... lists repos from GitHub's REST API
+   */
+  private void github(RequestParser request, ResponseWriter response) throws IOException {
+    // pulls the query from the request and runs it with GitHub's REST API
+    // check out https://docs.github.com/rest/reference/
+    //
+    // HINT: REST is organized by nesting topics. Figure out the biggest one first,
+    //     then drill down to what you care about
+    // "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
+    //     "/repos/OWNERNAME/REPONAME/contributors"
+
+    String query;
+    try {
+      query = splitQuery(request.query().toString()).get("query");
+    } catch (Exception e) {
+      query = null;
+    }
+    if (query == null) {
+      response.status("400 Bad Request");
+      response.write("Please enter a valid input. Format: /github?query=users/amehlhase316/repos");
+      return;
+    }
+
+    String path = normalizeQuery(query);
+    try {
+      URI.create(path);
+    } catch (IllegalArgumentException e) {
+      response.status("400 Bad Request");
+      response.write("Not a valid GitHub API path: " + query);
+      return;
+    }
+    // the cache keeps the summary, not the whole answer from GitHub
+    CompletableFuture<String> fetch = githubCache.get(path, p -> githubApi.get(p,
+        body -> summarizeRepos(new InputStreamReader(body, StandardCharsets.UTF_8))));
+
+    // the request runs in the background, the response is written when it
+    // completes instead of holding this thread until then
+    CompletableFuture<Void> done = response.startAsync();
+    fetch.whenComplete((summary, error) -> {
+      try {
+        if (error != null) {
+          upstreamFailed(error, response);
+        } else {
+          response.status("200 OK");
+          response.header("Content-Type", "text/html; charset=utf-8");
+          response.write(summary);
         }
+        done.complete(null);
+      } catch (Throwable t) {
+        done.completeExceptionally(t);
+      }
+    });
+  }
 
-        // Output
-        response = builder.toString().getBytes();
+  /**
+   * Brings equivalent GitHub queries to one form, so they share a cache entry
+   * ("/users/x/repos/", "users//x/repos" and "users/x/repos" are the same)
+   */
+  static String normalizeQuery(String query) {
+    StringBuilder path = new StringBuilder(query.length());
+    for (String part : query.trim().split("/")) {
+      if (!part.isEmpty()) {
+        if (path.length() > 0) {
+          path.append('/');
+        }
+        path.append(part);
       }
-    } catch (IOException e) {
-      e.printStackTrace();
-      response = ("<html>ERROR: " + e.getMessage() + "</html>").getBytes();
     }
+    return path.toString();
+  }
+
+  /**
+   * Answers 504 if GitHub took too long and 502 for any other failure
+   */
+  private static void upstreamFailed(Throwable error, ResponseWriter response) throws IOException {
+    if (error instanceof CompletionException && error.getCause() != null) {
+      error = error.getCause();
+    }
+    Log.warn("GitHub request failed: " + error);
+    if (error instanceof HttpTimeoutException) {
+      response.status("504 Gateway Timeout");
+    } else {
+      response.status("502 Bad Gateway");
+    }
+    response.write("Could not get an answer from GitHub: " + error.getMessage());
+  }
 
-    return response;
+  // fields of a repo, in a list of repos ("users/x/repos") or a single one ("repos/x/y")
+  private static final String[] REPO_FIELDS = {
+    "[].full_name", "[].id", "[].owner.login", "full_name", "id", "owner.login"
+  };
+
+  /**
+   * Lists the full names, ids and owners of the repos in GitHub's answer.
+   * The JSON is read once, token by token, while it arrives, without
+   * building a tree of it or holding it as a whole
+   * @param json answer from GitHub
+   * @return HTML body listing the fields
+   * @throws IOException if the answer is not valid JSON or can't be read
+   */
+  static String summarizeRepos(Reader json) throws IOException {
+    StringBuilder names = new StringBuilder();
+    StringBuilder ids = new StringBuilder();
+    StringBuilder owners = new StringBuilder();
+    new JsonTokenizer(json).extract(REPO_FIELDS, (path, value) -> {
+      StringBuilder list = path.endsWith("full_name") ? names : path.endsWith("login") ? owners : ids;
+      list.append(value).append(' ');
+    });
+
+    return "Check the todos mentioned in the Java source file"
+        + "<br>"
+        + "<br>"
+        + "Full Repo Names: " + names
+        + "<br>"
+        + "<br>"
+        + "Repo IDS: " + ids
+        + "<br>"
+        + "<br>"
+        + "Login Owner Of Each Repo: " + owners
+        + "<br>";
+  }
+
+  /**
+   * Any request that has no route
+   */
+  private void notFound(RequestParser request, ResponseWriter response) throws IOException {
+    // if the request is not recognized at all
+
+    response.status("400 Bad Request");
+    response.header("Content-Type", "text/html; charset=utf-8");
+    response.write("I am not sure what you want me to do...");
+  }
+
+  /**
+   * Renders the default directory page from the root.html template
+   * @return body of the "/" response
+   */
+  private String renderRootPage() {
+    Template template;
+    try {
+      template = templates.template("root.html");
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    Map<String, String> values = new HashMap<>();
+    values.put("links", buildFileList());
+
+    StringBuilder builder = new StringBuilder();
+    builder.append(template.render(values));
+
+    builder.append("\n");
+    builder.append("You can enter profile? as an option, copy paste the below example");
+    builder.append("\n");
+    builder.append("/profile?Name=asdf&Birthday=01/01/1900");
+
+    builder.append("\n");
+    builder.append("You can enter repeat? as an option, copy paste the below example");
+    builder.append("\n");
+    builder.append("/repeat?string=Test&num=50");
+
+    builder.append("\n");
+    builder.append(" 5) /github?query=users/amehlhase316/repos (or other GitHub repo owners) will lead to receiving JSON which will for now only be printed in the console. See the todo below");
+    builder.append("\n");
+    return builder.toString();
   }
 
   /**
@@ -568,14 +1213,14 @@ class WebServer {
   }
 
   /**
-   * Builds an HTML file list from the www directory
+   * Builds an HTML file list from the docroot directory
    * @return HTML string output of file list
    */
   public static String buildFileList() {
     ArrayList<String> filenames = new ArrayList<>();
 
     // Creating a File object for directory
-    File directoryPath = new File("www/");
+    File directoryPath = DOCROOT;
     filenames.addAll(Arrays.asList(directoryPath.list()));
 
     if (filenames.size() > 0) {
@@ -592,63 +1237,10 @@ class WebServer {
   }
 
   /**
-   * Read bytes from a file and return them in the byte array. We read in blocks
-   * of 512 bytes for efficiency.
+   * Read bytes from a file and return them in the byte array. The array is
+   * sized from the file length, so the file is read in one go without copies.
    */
   public static byte[] readFileInBytes(File f) throws IOException {
-
-    FileInputStream file = new FileInputStream(f);
-    ByteArrayOutputStream data = new ByteArrayOutputStream(file.available());
-
-    byte buffer[] = new byte[512];
-    int numRead = file.read(buffer);
-    while (numRead > 0) {
-      data.write(buffer, 0, numRead);
-      numRead = file.read(buffer);
-    }
-    file.close();
-
-    byte[] result = data.toByteArray();
-    data.close();
-
-    return result;
-  }
-
-  /**
-   *
-   * a method to make a web request. Note that this method will block execution
-   * for up to 20 seconds while the request is being satisfied. Better to use a
-   * non-blocking request.
-   * 
-   * @param aUrl the String indicating the query url for the OMDb api search
-   * @return the String result of the http request.
-   *
-   **/
-  public String fetchURL(String aUrl) {
-    StringBuilder sb = new StringBuilder();
-    URLConnection conn = null;
-    InputStreamReader in = null;
-    try {
-      URL url = new URL(aUrl);
-      conn = url.openConnection();
-      if (conn != null)
-        conn.setReadTimeout(20 * 1000); // timeout in 20 seconds
-      if (conn != null && conn.getInputStream() != null) {
-        in = new InputStreamReader(conn.getInputStream(), Charset.defaultCharset());
-        BufferedReader br = new BufferedReader(in);
-        if (br != null) {
-          int ch;
-          // read the next character until end of reader
-          while ((ch = br.read()) != -1) {
-            sb.append((char) ch);
-          }
-          br.close();
-        }
-      }
-      in.close();
-    } catch (Exception ex) {
-      System.out.println("Exception in url request:" + ex.getMessage());
-    }
-    return sb.toString();
+    return Files.readAllBytes(f.toPath());
   }
 }
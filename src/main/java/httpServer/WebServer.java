@@ -2,31 +2,171 @@ package httpServer;
 
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 class WebServer {
 
     // 
     public static void main(String args[]) {
-        if (args.length != 1) {
-            System.out.println("Usage: WebServer <port>");
+        if (args.length < 1 || args.length > 4) {
+            System.out.println("Usage: WebServer <port> [workers] [queueSize] [reject|block]");
             System.exit(1);
         }
-        
-        WebServer server = new WebServer(Integer.parseInt(args[0]));
+
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_WORKERS;
+        int queueSize = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_QUEUE_SIZE;
+        Overload overload = args.length > 3
+            ? Overload.valueOf(args[3].toUpperCase()) : Overload.REJECT;
+
+        WebServer server = new WebServer(Integer.parseInt(args[0]),
+                                         workers, queueSize, overload);
     }
 
+    /** What the acceptor does when all workers are busy and the queue is full */
+    enum Overload {
+        /** answer the new connection with 503 right away and close it */
+        REJECT,
+        /** stop accepting until a slot in the queue frees up */
+        BLOCK
+    }
+
+    static final int DEFAULT_WORKERS = 
+        2 * Runtime.getRuntime().availableProcessors();
+    static final int DEFAULT_QUEUE_SIZE = 64;
+
+    /** a worker gives up on a client that doesn't send its request in time */
+    static final int READ_TIMEOUT_MILLIS = 10 * 1000;
+
+    private static final byte[] SERVICE_UNAVAILABLE = (
+        "HTTP/1.1 503 Service Unavailable\r\n" +
+        "Content-Type: text/html\r\n" +
+        "Content-Length: 37\r\n" +
+        "Retry-After: 1\r\n" +
+        "Connection: close\r\n" +
+        "\r\n" +
+        "<html>Server busy, try again</html>\r\n").getBytes();
+
     public WebServer(int port) {
+        this(port, DEFAULT_WORKERS, DEFAULT_QUEUE_SIZE, Overload.REJECT);
+    }
+
+    /**
+     * Accepts connections on the calling thread and serves them from a fixed
+     * pool of workers fed through a bounded queue.
+     * @param port      port to listen on
+     * @param workers   number of worker threads
+     * @param queueSize accepted connections that may wait for a worker
+     * @param overload  what to do when the queue is full
+     */
+    public WebServer(int port, int workers, int queueSize, Overload overload) {
         
         ServerSocket    server = null;
         Socket          sock = null;
+
+        RejectedExecutionHandler onFull;
+        if (overload == Overload.BLOCK) {
+            // backpressure: the acceptor waits for room, new connections
+            // pile up in the kernel's accept backlog instead
+            onFull = (task, pool) -> {
+                try {
+                    pool.getQueue().put(task);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(e);
+                }
+            };
+        } else {
+            onFull = new ThreadPoolExecutor.AbortPolicy();
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            workers, workers, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), onFull);
+
+        try {
+            // Open the server socket on the specified port
+            server = new ServerSocket(port);
+            System.out.println("Serving on port " + port + " with " + workers +
+                               " workers, queue " + queueSize + ", " +
+                               overload + " when full");
+
+            // Loop forever accepting socket requests
+            while (true) {
+                sock = server.accept();
+                Socket client = sock;
+                try {
+                    pool.execute(() -> serve(client));
+                } catch (RejectedExecutionException e) {
+                    reject(client);
+                }
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        finally {
+            pool.shutdown();
+            if (server != null) {
+                try {
+                    server.close();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /** Runs on a worker: reads the request and writes the response */
+    private void serve(Socket sock) {
         InputStream     in = null;
         OutputStream    out = null;
 
-        //*** Open the server socket on the specified port
-        //*** Loop forever accepting socket requests
-        //***   Get the response bytes from createResponse
-        //***   Write the bytes to the socket's output stream
-        //***   close streams and socket appropriatels
+        try {
+            sock.setSoTimeout(READ_TIMEOUT_MILLIS);
+            in = sock.getInputStream();
+            out = sock.getOutputStream();
+
+            // Get the response bytes from createResponse
+            byte[] response = createResponse(in);
+
+            // Write the bytes to the socket's output stream
+            out.write(response);
+            out.flush();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        finally {
+            // close streams and socket appropriately
+            closeQuietly(sock);
+        }
+    }
+
+    /** Runs on the acceptor when the server is saturated */
+    private void reject(Socket sock) {
+        try {
+            sock.getOutputStream().write(SERVICE_UNAVAILABLE);
+            sock.getOutputStream().flush();
+        }
+        catch (IOException e) {
+            // client is gone already, nothing to tell it
+        }
+        finally {
+            closeQuietly(sock);
+        }
+    }
+
+    private static void closeQuietly(Socket sock) {
+        try {
+            sock.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
 
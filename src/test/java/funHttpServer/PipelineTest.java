@@ -0,0 +1,112 @@
+/*
+Tests for Pipeline against a POOL server with a single worker thread: more
+requests are pipelined on one connection than its executor queues, each
+answered with more than pipelineBuffer bytes, and all of them have to come
+back in order.
+*/
+
+package funHttpServer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class PipelineTest {
+  private static final int POOL_SIZE = 1;
+  private static int port;
+
+  @BeforeAll
+  static void startServer() throws Exception {
+    port = LoadGenerator.freePort();
+    // runs until the test JVM exits, like the server LoadTest starts
+    Thread server = new Thread(() -> new WebServer(port, WebServer.Mode.POOL, POOL_SIZE), "server");
+    server.setDaemon(true);
+    server.start();
+    for (int attempt = 0; ; attempt++) {
+      try (Socket probe = new Socket()) {
+        probe.connect(new InetSocketAddress("localhost", port), 1000);
+        return;
+      } catch (IOException e) {
+        if (attempt == 50) {
+          throw e;
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  /**
+   * Sends the targets pipelined on one connection, the last one closing it
+   * @return everything the server answered until it closed the connection
+   */
+  private static String pipeline(String... targets) throws IOException {
+    StringBuilder requests = new StringBuilder();
+    for (int i = 0; i < targets.length; i++) {
+      requests.append("GET ").append(targets[i]).append(" HTTP/1.1\r\nHost: localhost\r\n");
+      if (i == targets.length - 1) {
+        requests.append("Connection: close\r\n");
+      }
+      requests.append("\r\n");
+    }
+    try (Socket sock = new Socket("localhost", port)) {
+      // a deadlocked connection fails the test instead of hanging it
+      sock.setSoTimeout(20000);
+      OutputStream out = sock.getOutputStream();
+      out.write(requests.toString().getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+      InputStream in = sock.getInputStream();
+      ByteArrayOutputStream answer = new ByteArrayOutputStream();
+      in.transferTo(answer);
+      return new String(answer.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  private static int count(String text, String part) {
+    int count = 0;
+    for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + part.length())) {
+      count++;
+    }
+    return count;
+  }
+
+  @Test
+  void moreLargeResponsesThanTheExecutorQueues() throws IOException {
+    int depth = Pipeline.MAX_DEPTH.get();
+    assertTrue(depth > POOL_SIZE * 4 + 1, "pipelines more than the pool queues");
+    // " x " per repeat, three times pipelineBuffer
+    int num = Pipeline.MAX_HELD.get();
+    String[] targets = new String[depth];
+    for (int i = 0; i < depth; i++) {
+      // a different string per request shows the order
+      targets[i] = "/repeat?string=" + (char) ('a' + i) + "&num=" + num;
+    }
+    String answer = pipeline(targets);
+    assertEquals(depth, count(answer, "HTTP/1.1 200 OK\r\n"));
+    int previous = -1;
+    for (int i = 0; i < depth; i++) {
+      char c = (char) ('a' + i);
+      int at = answer.indexOf(" " + c + "  " + c + " ");
+      assertTrue(at > previous, "response " + i + " in order");
+      previous = at;
+    }
+  }
+
+  @Test
+  void smallResponsesAreAnsweredInOrder() throws IOException {
+    String answer = pipeline("/multiply?num1=2&num2=3", "/json", "/multiply?num1=4&num2=5",
+        "/nothing", "/multiply?num1=6&num2=7");
+    assertEquals(5, count(answer, "HTTP/1.1 "));
+    int six = answer.indexOf("Result is: 6");
+    int twenty = answer.indexOf("Result is: 20");
+    int fortyTwo = answer.indexOf("Result is: 42");
+    assertTrue(six >= 0 && six < twenty && twenty < fortyTwo, answer);
+  }
+}
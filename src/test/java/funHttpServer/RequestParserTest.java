@@ -0,0 +1,160 @@
+/*
+Tests for RequestParser: requests that parse, fed whole or byte by byte, and
+the status every malformed or oversized request is turned away with.
+*/
+
+package funHttpServer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class RequestParserTest {
+
+  private static ByteBuffer buffer(String request) {
+    byte[] bytes = request.getBytes(StandardCharsets.ISO_8859_1);
+    ByteBuffer buf = ByteBuffer.allocate(bytes.length + 16);
+    buf.put(bytes);
+    return buf;
+  }
+
+  private static RequestParser parsed(String request) throws RequestParser.BadRequest {
+    RequestParser parser = new RequestParser();
+    assertTrue(parser.parse(buffer(request)), "header complete");
+    return parser;
+  }
+
+  /**
+   * @return the status the request is rejected with
+   */
+  private static String rejected(String request) {
+    return assertThrows(RequestParser.BadRequest.class, () -> new RequestParser().parse(buffer(request))).status;
+  }
+
+  @Test
+  void parsesRequestLineAndHeaders() throws Exception {
+    RequestParser request = parsed("GET /multiply?num1=3&num2=4 HTTP/1.1\r\nHost: localhost\r\n"
+        + "Accept-Encoding:  gzip \r\n\r\n");
+    assertEquals("GET", request.method().toString());
+    assertEquals("/multiply?num1=3&num2=4", request.target().toString());
+    assertEquals("/multiply", request.path().toString());
+    assertEquals("num1=3&num2=4", request.query().toString());
+    assertEquals("HTTP/1.1", request.version().toString());
+    assertEquals(2, request.headerCount());
+    assertEquals("gzip", request.header("accept-encoding").toString());
+    assertNull(request.header("Range"));
+  }
+
+  @Test
+  void acceptsBareLineFeeds() throws Exception {
+    RequestParser request = parsed("\r\nGET / HTTP/1.0\nHost: x\n\n");
+    assertEquals("/", request.path().toString());
+    assertEquals("x", request.header("Host").toString());
+  }
+
+  @Test
+  void parsesByteByByte() throws Exception {
+    String text = "GET /json HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    RequestParser parser = new RequestParser();
+    ByteBuffer buf = ByteBuffer.allocate(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      buf.put((byte) text.charAt(i));
+      assertEquals(i == text.length() - 1, parser.parse(buf));
+    }
+    assertEquals("/json", parser.path().toString());
+  }
+
+  @Test
+  void consumeKeepsThePipelinedRequest() throws Exception {
+    ByteBuffer buf = buffer("GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\n\r\n");
+    RequestParser parser = new RequestParser();
+    assertTrue(parser.parse(buf));
+    assertEquals("/a", parser.path().toString());
+    parser.consume(buf);
+    assertTrue(parser.parse(buf));
+    assertEquals("/b", parser.path().toString());
+  }
+
+  @Test
+  void copiedHeaderOutlivesTheBuffer() throws Exception {
+    ByteBuffer buf = buffer("GET /a HTTP/1.1\r\nHost: x\r\n\r\nGET /b HTTP/1.1\r\n\r\n");
+    RequestParser parser = new RequestParser();
+    assertTrue(parser.parse(buf));
+    parser.copyHeader();
+    // the connection reuses its buffer for the next requests
+    buf.clear();
+    buf.put(new byte[buf.capacity()]);
+    assertEquals("/a", parser.path().toString());
+    assertEquals("x", parser.header("Host").toString());
+  }
+
+  @Test
+  void malformedRequestsAre400() {
+    assertEquals("400 Bad Request", rejected("get / HTTP/1.1\r\n\r\n"));
+    assertEquals("400 Bad Request", rejected(" / HTTP/1.1\r\n\r\n"));
+    assertEquals("400 Bad Request", rejected("GET  HTTP/1.1\r\n\r\n"));
+    assertEquals("400 Bad Request", rejected("GET /a\tb HTTP/1.1\r\n\r\n"));
+    assertEquals("400 Bad Request", rejected("GET / HTTP/1\r\n\r\n"));
+    assertEquals("400 Bad Request", rejected("GET / HTTP/1.1\rX"));
+    assertEquals("400 Bad Request", rejected("GET / HTTP/1.1\r\nHost: x\r\n folded\r\n\r\n"));
+    assertEquals("400 Bad Request", rejected("GET / HTTP/1.1\r\n: x\r\n\r\n"));
+    assertEquals("400 Bad Request", rejected("GET / HTTP/1.1\r\nBad Name: x\r\n\r\n"));
+    assertEquals("400 Bad Request", rejected("GET / HTTP/1.1\r\nHost: x\r\n\rX"));
+  }
+
+  @Test
+  void longRequestLineIs414() {
+    String target = "/" + "a".repeat(RequestParser.MAX_REQUEST_LINE);
+    assertEquals("414 URI Too Long", rejected("GET " + target));
+  }
+
+  @Test
+  void tooManyHeadersIs431() {
+    StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\n");
+    for (int i = 0; i <= RequestParser.MAX_HEADERS; i++) {
+      request.append("X-").append(i).append(": ").append(i).append("\r\n");
+    }
+    assertEquals("431 Request Header Fields Too Large", rejected(request.append("\r\n").toString()));
+  }
+
+  @Test
+  void largeHeaderIs431() {
+    String value = "v".repeat(WebServer.MAX_HEADER_BYTES);
+    assertEquals("431 Request Header Fields Too Large", rejected("GET / HTTP/1.1\r\nCookie: " + value));
+  }
+
+  @Test
+  void limitsHoldWhileTheRequestArrives() throws Exception {
+    RequestParser parser = new RequestParser();
+    ByteBuffer buf = ByteBuffer.allocate(1024);
+    buf.put("GET / HTTP/1.1\r\nCookie: ".getBytes(StandardCharsets.US_ASCII));
+    assertFalse(parser.parse(buf));
+    RequestParser.BadRequest e = assertThrows(RequestParser.BadRequest.class, () -> {
+      ByteBuffer grown = buf;
+      while (true) {
+        grown = RequestParser.ensureRoom(grown);
+        assertTrue(grown.hasRemaining(), "buffer stops growing at the limit");
+        grown.put((byte) 'v');
+        parser.parse(grown);
+      }
+    });
+    assertEquals("431 Request Header Fields Too Large", e.status);
+  }
+
+  @Test
+  void serverAnswersWithTheStatus() {
+    WebServer server = new WebServer();
+    String response = new String(server.createResponse(
+        new ByteArrayInputStream("GET / HTTP/9\r\n\r\n".getBytes(StandardCharsets.US_ASCII))),
+        StandardCharsets.ISO_8859_1);
+    assertTrue(response.startsWith("HTTP/1.1 400 Bad Request\r\n"), response);
+
+    String line = "GET /" + "a".repeat(RequestParser.MAX_REQUEST_LINE) + " HTTP/1.1\r\n\r\n";
+    response = new String(server.createResponse(
+        new ByteArrayInputStream(line.getBytes(StandardCharsets.US_ASCII))), StandardCharsets.ISO_8859_1);
+    assertTrue(response.startsWith("HTTP/1.1 414 URI Too Long\r\n"), response);
+  }
+}
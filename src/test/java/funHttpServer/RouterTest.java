@@ -0,0 +1,139 @@
+/*
+Tests for Router and the routing of the FunWebServer: which handler a path
+finds, what a path without a route or a request other than GET is answered
+with, and which requests fileTarget streams from the docroot.
+*/
+
+package funHttpServer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.jupiter.api.Test;
+
+class RouterTest {
+  private static final Router.Handler NONE = (request, response) -> { };
+
+  private static Router router() {
+    Router router = new Router();
+    router.exact("/", NONE);
+    router.exact("/json", NONE);
+    router.exact("/file", NONE);
+    router.prefix("/file/", NONE);
+    router.prefix("/file/www/", NONE);
+    return router;
+  }
+
+  private static String pattern(Router router, String path) {
+    Router.Route route = router.find(path);
+    return route == null ? null : route.pattern;
+  }
+
+  @Test
+  void exactWinsOverPrefix() {
+    Router router = router();
+    assertEquals("/", pattern(router, "/"));
+    assertEquals("/json", pattern(router, "/json"));
+    assertEquals("/file", pattern(router, "/file"));
+    assertEquals("/file/", pattern(router, "/file/"));
+  }
+
+  @Test
+  void longestPrefixWins() {
+    Router router = router();
+    assertEquals("/file/", pattern(router, "/file/README.md"));
+    assertEquals("/file/www/", pattern(router, "/file/www/index.html"));
+    assertEquals("/file/", pattern(router, "/file/ww"));
+  }
+
+  @Test
+  void ignoresAsciiCase() {
+    assertEquals("/json", pattern(router(), "/JSON"));
+    assertEquals("/file/www/", pattern(router(), "/File/WWW/x"));
+  }
+
+  @Test
+  void missesReturnNull() {
+    Router router = router();
+    assertNull(pattern(router, ""));
+    assertNull(pattern(router, "/js"));
+    assertNull(pattern(router, "/jsonx"));
+    // an exact route doesn't answer with a trailing slash
+    assertNull(pattern(router, "/json/"));
+    assertNull(pattern(router, "/j\u00e9son"));
+  }
+
+  @Test
+  void rootPrefixCatchesEverything() {
+    Router router = new Router();
+    router.prefix("/", NONE);
+    router.exact("/json", NONE);
+    assertEquals("/", pattern(router, "/nothing/here"));
+    assertEquals("/json", pattern(router, "/json"));
+  }
+
+  @Test
+  void rejectsNonAsciiRoutes() {
+    assertThrows(IllegalArgumentException.class, () -> new Router().exact("/\u00e9", NONE));
+  }
+
+  private static RequestParser request(String method, String target) throws IOException {
+    byte[] bytes = (method + " " + target + " HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    RequestParser request = new RequestParser();
+    assertTrue(request.parse(ByteBuffer.allocate(bytes.length).put(bytes)));
+    return request;
+  }
+
+  private static String status(String method, String target) {
+    String response = new String(new WebServer().createResponse(new ByteArrayInputStream(
+        (method + " " + target + " HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII))),
+        StandardCharsets.ISO_8859_1);
+    return response.substring("HTTP/1.1 ".length(), response.indexOf("\r\n"));
+  }
+
+  @Test
+  void serverAnswersMissesAndOtherMethods() {
+    assertEquals("200 OK", status("GET", "/json"));
+    assertEquals("200 OK", status("GET", "/JSON?x=1"));
+    // no route at all gets the page's own "not sure what you want" answer
+    assertEquals("400 Bad Request", status("GET", "/nothing"));
+    assertEquals("400 Bad Request", status("GET", "/json/"));
+    assertEquals("404 Not Found", status("GET", "/file/no/such/file"));
+    assertEquals("405 Method Not Allowed", status("POST", "/json"));
+    assertEquals("405 Method Not Allowed", status("DELETE", "/nothing"));
+  }
+
+  @Test
+  void fileTargetStreamsDocrootAndFileRoute() throws IOException {
+    WebServer server = new WebServer();
+    assertEquals(new File(WebServer.DOCROOT, "index.html"), server.fileTarget(request("GET", "/index.html")));
+    assertEquals(new File("www/index.html"), server.fileTarget(request("GET", "/file/www/index.html")));
+    assertNull(server.fileTarget(request("GET", "/file/no/such/file")));
+    assertNull(server.fileTarget(request("HEAD", "/index.html")));
+    // the routes answer requests with a query
+    assertNull(server.fileTarget(request("GET", "/index.html?x=1")));
+    assertNull(server.fileTarget(request("GET", "/no-such-file.html")));
+    assertNull(server.fileTarget(request("GET", "/")));
+    assertNull(server.fileTarget(request("GET", "/index.html/")));
+    assertNull(server.fileTarget(request("GET", "/../build.gradle")));
+  }
+
+  @Test
+  void routeWinsOverDocrootFile() throws IOException {
+    File shadow = new File(WebServer.DOCROOT, "json");
+    assertFalse(shadow.exists(), "test file left over");
+    Files.write(shadow.toPath(), "{}".getBytes(StandardCharsets.US_ASCII));
+    try {
+      WebServer server = new WebServer();
+      assertNull(server.fileTarget(request("GET", "/json")));
+      assertNull(server.fileTarget(request("GET", "/json/")));
+    } finally {
+      Files.delete(shadow.toPath());
+    }
+  }
+}
@@ -0,0 +1,233 @@
+/*
+Tests for StaticFiles: the byte ranges a Range header asks for, the replies
+prepare builds for ranges, with and without If-Range, and the 304s for
+If-None-Match and If-Modified-Since.
+*/
+
+package funHttpServer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StaticFilesTest {
+  private static final String CONTENT = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+  @TempDir
+  Path dir;
+  private File file;
+
+  @BeforeEach
+  void createFile() throws IOException {
+    file = dir.resolve("data.bin").toFile();
+    Files.write(file.toPath(), CONTENT.getBytes(StandardCharsets.US_ASCII));
+    // whole seconds, like the dates in the headers
+    assertTrue(file.setLastModified(1_700_000_000_000L));
+  }
+
+  private static RequestParser request(String... headers) throws IOException {
+    StringBuilder text = new StringBuilder("GET /file/data.bin HTTP/1.1\r\n");
+    for (String header : headers) {
+      text.append(header).append("\r\n");
+    }
+    byte[] bytes = text.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII);
+    RequestParser request = new RequestParser();
+    assertTrue(request.parse(ByteBuffer.allocate(bytes.length).put(bytes)));
+    return request;
+  }
+
+  /**
+   * @return the whole reply as written to a client
+   */
+  private String send(String... headers) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (StaticFiles.Reply reply = StaticFiles.prepare(file, request(headers), true)) {
+      assertTrue(reply.writeTo(Channels.newChannel(bytes)));
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.US_ASCII);
+  }
+
+  private static String header(String reply, String name) {
+    int start = reply.indexOf("\r\n" + name + ": ");
+    if (start < 0) {
+      return null;
+    }
+    start += name.length() + 4;
+    return reply.substring(start, reply.indexOf("\r\n", start));
+  }
+
+  private static String status(String reply) {
+    return reply.substring("HTTP/1.1 ".length(), reply.indexOf("\r\n"));
+  }
+
+  private static String body(String reply) {
+    return reply.substring(reply.indexOf("\r\n\r\n") + 4);
+  }
+
+  private String etag() throws IOException {
+    return header(send(), "ETag");
+  }
+
+  private String lastModified(long offsetSeconds) {
+    return StaticFiles.HTTP_DATE.format(Instant.ofEpochMilli(file.lastModified()).plusSeconds(offsetSeconds));
+  }
+
+  @Test
+  void parsesSingleRanges() {
+    assertArrayEquals(new long[] {0, 10}, StaticFiles.parseRange("bytes=0-9", 100));
+    assertArrayEquals(new long[] {10, 11}, StaticFiles.parseRange(" bytes= 10-10 ", 100));
+    // the end is cut off at the end of the file
+    assertArrayEquals(new long[] {90, 100}, StaticFiles.parseRange("bytes=90-500", 100));
+  }
+
+  @Test
+  void parsesOpenEndedRanges() {
+    assertArrayEquals(new long[] {40, 100}, StaticFiles.parseRange("bytes=40-", 100));
+    assertArrayEquals(new long[] {99, 100}, StaticFiles.parseRange("bytes=99-", 100));
+  }
+
+  @Test
+  void parsesSuffixRanges() {
+    assertArrayEquals(new long[] {70, 100}, StaticFiles.parseRange("bytes=-30", 100));
+    // more than the file has is the whole file
+    assertArrayEquals(new long[] {0, 100}, StaticFiles.parseRange("bytes=-500", 100));
+  }
+
+  @Test
+  void unsatisfiableRanges() {
+    assertSame(StaticFiles.UNSATISFIABLE, StaticFiles.parseRange("bytes=100-", 100));
+    assertSame(StaticFiles.UNSATISFIABLE, StaticFiles.parseRange("bytes=200-300", 100));
+    assertSame(StaticFiles.UNSATISFIABLE, StaticFiles.parseRange("bytes=-0", 100));
+    assertSame(StaticFiles.UNSATISFIABLE, StaticFiles.parseRange("bytes=-10", 0));
+  }
+
+  @Test
+  void multipleAndMalformedRangesGetTheWholeFile() {
+    assertNull(StaticFiles.parseRange("bytes=0-9,20-29", 100));
+    assertNull(StaticFiles.parseRange("bytes=0-9, -5", 100));
+    assertNull(StaticFiles.parseRange("items=0-9", 100));
+    assertNull(StaticFiles.parseRange("bytes=9-0", 100));
+    assertNull(StaticFiles.parseRange("bytes=5", 100));
+    assertNull(StaticFiles.parseRange("bytes=a-b", 100));
+  }
+
+  @Test
+  void servesRanges() throws IOException {
+    String reply = send("Range: bytes=10-15");
+    assertEquals("206 Partial Content", status(reply));
+    assertTrue(reply.contains("Content-Range: bytes 10-15/36\r\n"), reply);
+    assertTrue(reply.contains("Content-Length: 6\r\n"), reply);
+    assertEquals("abcdef", body(reply));
+
+    assertEquals("wxyz", body(send("Range: bytes=-4")));
+    assertEquals("uvwxyz", body(send("Range: bytes=30-")));
+  }
+
+  @Test
+  void multipleRangesAreServedWhole() throws IOException {
+    String reply = send("Range: bytes=0-1,5-6");
+    assertEquals("200 OK", status(reply));
+    assertEquals(CONTENT, body(reply));
+  }
+
+  @Test
+  void unsatisfiableRangeIs416() throws IOException {
+    String reply = send("Range: bytes=36-");
+    assertEquals("416 Range Not Satisfiable", status(reply));
+    assertTrue(reply.contains("Content-Range: bytes */36\r\n"), reply);
+    assertEquals("", body(reply));
+  }
+
+  @Test
+  void ifRangeWithCurrentValidatorsServesTheRange() throws IOException {
+    assertEquals("206 Partial Content", status(send("Range: bytes=0-3", "If-Range: " + etag())));
+    assertEquals("206 Partial Content", status(send("Range: bytes=0-3", "If-Range: " + lastModified(0))));
+  }
+
+  @Test
+  void staleIfRangeServesTheWholeFile() throws IOException {
+    String old = etag();
+    Files.write(file.toPath(), CONTENT.toUpperCase().getBytes(StandardCharsets.US_ASCII));
+    assertTrue(file.setLastModified(1_700_000_100_000L));
+
+    String reply = send("Range: bytes=0-3", "If-Range: " + old);
+    assertEquals("200 OK", status(reply));
+    assertEquals(CONTENT.toUpperCase(), body(reply));
+
+    assertEquals("200 OK", status(send("Range: bytes=0-3", "If-Range: " + lastModified(-100))));
+    // ranges need the strong comparison, a weak tag never matches
+    assertEquals("200 OK", status(send("Range: bytes=0-3", "If-Range: W/" + etag())));
+    assertEquals("200 OK", status(send("Range: bytes=0-3", "If-Range: not a date")));
+  }
+
+  @Test
+  void currentETagIs304() throws IOException {
+    String etag = etag();
+    String reply = send("If-None-Match: " + etag);
+    assertEquals("304 Not Modified", status(reply));
+    assertEquals(etag, header(reply, "ETag"));
+    assertNotNull(header(reply, "Last-Modified"));
+    assertNull(header(reply, "Content-Length"));
+    assertEquals("", body(reply));
+  }
+
+  @Test
+  void ifNoneMatchListsAndWeakTags() throws IOException {
+    String etag = etag();
+    assertEquals("304 Not Modified", status(send("If-None-Match: \"other\", " + etag)));
+    // If-None-Match uses the weak comparison
+    assertEquals("304 Not Modified", status(send("If-None-Match: W/" + etag)));
+    assertEquals("304 Not Modified", status(send("If-None-Match: *")));
+    assertEquals("200 OK", status(send("If-None-Match: \"other\"")));
+  }
+
+  @Test
+  void changedFileGetsANewETag() throws IOException {
+    String old = etag();
+    Files.write(file.toPath(), CONTENT.toUpperCase().getBytes(StandardCharsets.US_ASCII));
+    assertTrue(file.setLastModified(1_700_000_100_000L));
+    assertNotEquals(old, etag());
+    assertEquals("200 OK", status(send("If-None-Match: " + old)));
+  }
+
+  @Test
+  void ifModifiedSince() throws IOException {
+    assertEquals("304 Not Modified", status(send("If-Modified-Since: " + lastModified(0))));
+    assertEquals("304 Not Modified", status(send("If-Modified-Since: " + lastModified(60))));
+    assertEquals("200 OK", status(send("If-Modified-Since: " + lastModified(-1))));
+    assertEquals("200 OK", status(send("If-Modified-Since: yesterday")));
+  }
+
+  @Test
+  void ifNoneMatchWinsOverIfModifiedSince() throws IOException {
+    assertEquals("200 OK", status(send("If-None-Match: \"other\"", "If-Modified-Since: " + lastModified(0))));
+    assertEquals("304 Not Modified", status(send("If-None-Match: " + etag(), "If-Modified-Since: " + lastModified(-60))));
+  }
+
+  @Test
+  void compressedCopyHasItsOwnETag() throws IOException {
+    file = dir.resolve("page.html").toFile();
+    Files.write(file.toPath(), "<p>compress me</p>\n".repeat(200).getBytes(StandardCharsets.US_ASCII));
+    String plain = etag();
+    String reply = send("Accept-Encoding: gzip");
+    assertEquals("gzip", header(reply, "Content-Encoding"));
+    String gzip = header(reply, "ETag");
+    assertEquals(StaticFiles.variantTag(plain, "gzip"), gzip);
+
+    assertEquals("304 Not Modified", status(send("Accept-Encoding: gzip", "If-None-Match: " + gzip)));
+    // the client's copy is the other representation
+    assertEquals("200 OK", status(send("Accept-Encoding: gzip", "If-None-Match: " + plain)));
+    assertEquals("200 OK", status(send("If-None-Match: " + gzip)));
+  }
+}
@@ -0,0 +1,108 @@
+/*
+Tests for TimerWheel: tasks run once their deadline has passed and not
+before, cancelled tasks never run, and deadlines further away than one turn
+of the wheel wait for the right round.
+*/
+
+package funHttpServer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+  private static final long TICK_MILLIS = 10;
+
+  /**
+   * Schedules a task and measures when it runs
+   */
+  private static long firesAfterMillis(TimerWheel wheel, long delayMillis) throws InterruptedException {
+    CountDownLatch fired = new CountDownLatch(1);
+    long start = System.nanoTime();
+    long[] ranAt = new long[1];
+    wheel.schedule(delayMillis, TimeUnit.MILLISECONDS, () -> {
+      ranAt[0] = System.nanoTime();
+      fired.countDown();
+    });
+    assertTrue(fired.await(delayMillis + 5000, TimeUnit.MILLISECONDS), "task ran");
+    return TimeUnit.NANOSECONDS.toMillis(ranAt[0] - start);
+  }
+
+  @Test
+  void firesAfterTheDelay() throws InterruptedException {
+    TimerWheel wheel = new TimerWheel(TICK_MILLIS, 64, "test-timer");
+    long elapsed = firesAfterMillis(wheel, 100);
+    // never early, late by about a tick
+    assertTrue(elapsed >= 100 - TICK_MILLIS, "ran after " + elapsed + " ms");
+    assertTrue(elapsed < 100 + 1000, "ran after " + elapsed + " ms");
+    assertEquals(0, wheel.pending());
+  }
+
+  @Test
+  void pastDeadlineFiresOnTheNextTick() throws InterruptedException {
+    TimerWheel wheel = new TimerWheel(TICK_MILLIS, 64, "test-timer");
+    assertTrue(firesAfterMillis(wheel, -50) < 1000);
+  }
+
+  @Test
+  void cancelledTasksNeverRun() throws InterruptedException {
+    TimerWheel wheel = new TimerWheel(TICK_MILLIS, 64, "test-timer");
+    AtomicInteger runs = new AtomicInteger();
+    TimerWheel.Timeout early = wheel.schedule(50, TimeUnit.MILLISECONDS, runs::incrementAndGet);
+    // cancelled before the timer thread moved it onto the wheel
+    assertTrue(early.cancel());
+    assertFalse(early.cancel());
+    TimerWheel.Timeout late = wheel.schedule(80, TimeUnit.MILLISECONDS, runs::incrementAndGet);
+    Thread.sleep(40);
+    // cancelled while it sits in its slot
+    assertTrue(late.cancel());
+    assertEquals(0, wheel.pending());
+
+    // runs after the cancelled ones would have
+    firesAfterMillis(wheel, 150);
+    assertEquals(0, runs.get());
+  }
+
+  @Test
+  void cancelAfterRunningFails() throws InterruptedException {
+    TimerWheel wheel = new TimerWheel(TICK_MILLIS, 64, "test-timer");
+    CountDownLatch fired = new CountDownLatch(1);
+    TimerWheel.Timeout t = wheel.schedule(10, TimeUnit.MILLISECONDS, fired::countDown);
+    assertTrue(fired.await(5, TimeUnit.SECONDS));
+    assertFalse(t.cancel());
+  }
+
+  @Test
+  void deadlinesBeyondOneTurnWrapAround() throws InterruptedException {
+    // 4 slots of 10 ms, 150 ms goes round the wheel more than three times
+    TimerWheel wheel = new TimerWheel(TICK_MILLIS, 4, "test-timer");
+    AtomicInteger order = new AtomicInteger();
+    int[] ranAs = new int[3];
+    CountDownLatch fired = new CountDownLatch(3);
+    long[] delays = {150, 20, 60};
+    for (int i = 0; i < delays.length; i++) {
+      int index = i;
+      wheel.schedule(delays[i], TimeUnit.MILLISECONDS, () -> {
+        ranAs[index] = order.incrementAndGet();
+        fired.countDown();
+      });
+    }
+    assertTrue(fired.await(5, TimeUnit.SECONDS));
+    assertArrayEquals(new int[] {3, 1, 2}, ranAs);
+
+    long elapsed = firesAfterMillis(wheel, 150);
+    assertTrue(elapsed >= 150 - TICK_MILLIS, "ran after " + elapsed + " ms");
+  }
+
+  @Test
+  void failingTaskKeepsTheTimerRunning() throws InterruptedException {
+    TimerWheel wheel = new TimerWheel(TICK_MILLIS, 64, "test-timer");
+    wheel.schedule(0, TimeUnit.MILLISECONDS, () -> {
+      throw new IllegalStateException("expected by the test");
+    });
+    firesAfterMillis(wheel, 30);
+  }
+}
@@ -0,0 +1,158 @@
+/*
+Tests for UpstreamCache: concurrent misses share one fetch, answers are
+served until their ttl runs out, failures are never cached, the least
+recently used entry is evicted first and stale answers are served while
+they are refreshed.
+*/
+
+package funHttpServer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.junit.jupiter.api.Test;
+
+class UpstreamCacheTest {
+
+  /**
+   * Counts fetches, each answered with the key and the fetch number
+   */
+  private static class Upstream implements Function<String, CompletableFuture<String>> {
+    final AtomicInteger calls = new AtomicInteger();
+
+    @Override
+    public CompletableFuture<String> apply(String key) {
+      return CompletableFuture.completedFuture(key + "#" + calls.incrementAndGet());
+    }
+  }
+
+  @Test
+  void concurrentMissesShareOneFetch() throws Exception {
+    UpstreamCache cache = new UpstreamCache(10, 60000, false);
+    CompletableFuture<String> answer = new CompletableFuture<>();
+    AtomicInteger calls = new AtomicInteger();
+    int callers = 8;
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService threads = Executors.newFixedThreadPool(callers);
+    try {
+      List<Future<CompletableFuture<String>>> gets = new ArrayList<>();
+      for (int i = 0; i < callers; i++) {
+        gets.add(threads.submit(() -> {
+          start.await();
+          return cache.get("users/a/repos", key -> {
+            calls.incrementAndGet();
+            return answer;
+          });
+        }));
+      }
+      start.countDown();
+      List<CompletableFuture<String>> results = new ArrayList<>();
+      for (Future<CompletableFuture<String>> get : gets) {
+        results.add(get.get(5, TimeUnit.SECONDS));
+      }
+      for (CompletableFuture<String> result : results) {
+        assertFalse(result.isDone(), "waits for the fetch");
+      }
+      answer.complete("[]");
+      for (CompletableFuture<String> result : results) {
+        assertEquals("[]", result.get(5, TimeUnit.SECONDS));
+      }
+    } finally {
+      threads.shutdownNow();
+    }
+    assertEquals(1, calls.get());
+    assertEquals(1, cache.misses());
+    assertEquals(callers - 1, cache.coalesced());
+  }
+
+  @Test
+  void servesHitsUntilTheTtlRunsOut() throws Exception {
+    UpstreamCache cache = new UpstreamCache(10, 100, false);
+    Upstream upstream = new Upstream();
+    assertEquals("k#1", cache.get("k", upstream).get());
+    assertEquals("k#1", cache.get("k", upstream).get());
+    assertEquals(1, cache.hits());
+
+    Thread.sleep(150);
+    assertEquals("k#2", cache.get("k", upstream).get());
+    assertEquals(2, upstream.calls.get());
+    assertEquals(2, cache.misses());
+  }
+
+  @Test
+  void newTtlAppliesToTheNextFetch() throws Exception {
+    UpstreamCache cache = new UpstreamCache(10, 60000, false);
+    Upstream upstream = new Upstream();
+    cache.ttl(0);
+    cache.get("k", upstream).get();
+    assertEquals("k#2", cache.get("k", upstream).get());
+  }
+
+  @Test
+  void failuresAreNotCached() throws Exception {
+    UpstreamCache cache = new UpstreamCache(10, 60000, false);
+    ExecutionException e = assertThrows(ExecutionException.class,
+        () -> cache.get("k", key -> CompletableFuture.failedFuture(new IOException("502"))).get());
+    assertTrue(e.getCause() instanceof IOException);
+    // a fetch that throws right away fails the same way
+    assertThrows(ExecutionException.class, () -> cache.get("k", key -> {
+      throw new IllegalArgumentException("bad key");
+    }).get());
+    assertEquals(2, cache.failures());
+    assertEquals(0, cache.size());
+
+    assertEquals("k#1", cache.get("k", new Upstream()).get());
+  }
+
+  @Test
+  void evictsTheLeastRecentlyUsed() throws Exception {
+    UpstreamCache cache = new UpstreamCache(2, 60000, false);
+    Upstream upstream = new Upstream();
+    cache.get("a", upstream).get();
+    cache.get("b", upstream).get();
+    // a is used again, so b goes first
+    cache.get("a", upstream).get();
+    cache.get("c", upstream).get();
+    assertEquals(1, cache.evictions());
+    assertEquals("a#1", cache.get("a", upstream).get());
+    assertEquals("b#4", cache.get("b", upstream).get());
+
+    cache.maxEntries(1);
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  void staleAnswerIsServedWhileItIsRefreshed() throws Exception {
+    UpstreamCache cache = new UpstreamCache(10, 50, true);
+    Upstream upstream = new Upstream();
+    cache.get("k", upstream).get();
+    Thread.sleep(100);
+
+    CompletableFuture<String> refresh = new CompletableFuture<>();
+    AtomicInteger refreshes = new AtomicInteger();
+    Function<String, CompletableFuture<String>> slow = key -> {
+      refreshes.incrementAndGet();
+      return refresh;
+    };
+    assertEquals("k#1", cache.get("k", slow).getNow(null));
+    assertEquals("k#1", cache.get("k", slow).getNow(null));
+    assertEquals(1, refreshes.get(), "one refresh at a time");
+    assertEquals(2, cache.staleHits());
+
+    // a failed refresh keeps the stale answer, the next request tries again
+    refresh.completeExceptionally(new IOException("timeout"));
+    assertEquals("k#1", cache.get("k", upstream).getNow(null));
+    assertEquals("k#2", cache.get("k", upstream).getNow(null));
+  }
+}
@@ -0,0 +1,151 @@
+/*
+Tests for UpstreamClient against a stub upstream on a free local port: a
+2xx answer is handed to the reader, any other status fails the request,
+and the timeout cuts off an upstream that never answers as well as one
+that stalls half way through its body, aborting the read waiting for it.
+*/
+
+package funHttpServer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class UpstreamClientTest {
+  private static final long TIMEOUT_MILLIS = 500;
+
+  private HttpServer stub;
+  private ExecutorService stubThreads;
+  // lets the stalling handlers finish once a test is done
+  private final CountDownLatch release = new CountDownLatch(1);
+  private UpstreamClient client;
+
+  @BeforeEach
+  void startStub() throws IOException {
+    stub = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    stub.createContext("/ok", exchange -> answer(exchange, 200, "{\"name\":\"repo\"}"));
+    stub.createContext("/error", exchange -> answer(exchange, 503, "down"));
+    stub.createContext("/stall-head", exchange -> {
+      await(release);
+      answer(exchange, 200, "too late");
+    });
+    stub.createContext("/stall-body", exchange -> {
+      exchange.sendResponseHeaders(200, 0);
+      try (OutputStream body = exchange.getResponseBody()) {
+        body.write("[{\"name\":".getBytes(StandardCharsets.UTF_8));
+        body.flush();
+        await(release);
+      }
+    });
+    // a stalling handler must not hold up the others
+    stubThreads = Executors.newCachedThreadPool();
+    stub.setExecutor(stubThreads);
+    stub.start();
+    client = new UpstreamClient("http://localhost:" + stub.getAddress().getPort(), 1000, TIMEOUT_MILLIS);
+  }
+
+  @AfterEach
+  void stopStub() {
+    release.countDown();
+    stub.stop(0);
+    stubThreads.shutdownNow();
+  }
+
+  private static void answer(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static Throwable failure(CompletableFuture<?> request) {
+    ExecutionException e = assertThrows(ExecutionException.class, () -> request.get(10, TimeUnit.SECONDS));
+    return e.getCause();
+  }
+
+  @Test
+  void successHandsTheBodyToTheReader() throws Exception {
+    assertEquals("{\"name\":\"repo\"}", client.get("ok").get(10, TimeUnit.SECONDS));
+    int length = client.get("ok", body -> body.readAllBytes().length).get(10, TimeUnit.SECONDS);
+    assertEquals(15, length);
+  }
+
+  @Test
+  void readerFailureFailsTheRequest() {
+    Throwable cause = failure(client.get("ok", body -> {
+      throw new IOException("not the JSON we expected");
+    }));
+    assertEquals("not the JSON we expected", cause.getMessage());
+  }
+
+  @Test
+  void errorStatusFailsTheRequest() {
+    Throwable cause = failure(client.get("error"));
+    assertTrue(cause instanceof IOException, cause.toString());
+    assertFalse(cause instanceof HttpTimeoutException, cause.toString());
+    assertTrue(cause.getMessage().contains("503"), cause.getMessage());
+  }
+
+  @Test
+  void upstreamThatNeverAnswersTimesOut() {
+    long start = System.nanoTime();
+    Throwable cause = failure(client.get("stall-head"));
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertTrue(cause instanceof HttpTimeoutException, cause.toString());
+    assertTrue(elapsed >= TIMEOUT_MILLIS - 50 && elapsed < TIMEOUT_MILLIS + 2000,
+        "timed out after " + elapsed + " ms");
+  }
+
+  @Test
+  void stalledBodyTimesOutAndAbortsTheRead() throws InterruptedException {
+    CountDownLatch readAborted = new CountDownLatch(1);
+    long start = System.nanoTime();
+    Throwable cause = failure(client.get("stall-body", body -> {
+      try {
+        return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+      } catch (IOException e) {
+        readAborted.countDown();
+        throw e;
+      }
+    }));
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertTrue(cause instanceof HttpTimeoutException, cause.toString());
+    assertTrue(elapsed < TIMEOUT_MILLIS + 2000, "timed out after " + elapsed + " ms");
+    // the reader's thread doesn't wait for the stub to go on
+    assertTrue(readAborted.await(5, TimeUnit.SECONDS), "read aborted");
+  }
+
+  @Test
+  void timeoutChangeAppliesToNewRequests() {
+    client.timeout(100);
+    long start = System.nanoTime();
+    assertTrue(failure(client.get("stall-head")) instanceof HttpTimeoutException);
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < TIMEOUT_MILLIS);
+  }
+}